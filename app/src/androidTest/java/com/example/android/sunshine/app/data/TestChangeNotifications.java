@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks how the provider's change notifications are coalesced, and counts what the loaders
+    of a sync's location and of another location would requery.  A CursorLoader requeries once
+    per notification its cursor's notification URI receives, and that URI is observed with its
+    descendants, which is what the observers below do as well.
+ */
+public class TestChangeNotifications extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestChangeNotifications.class.getSimpleName();
+
+    private static final String OTHER_LOCATION = "94043";
+
+    private long mLocationRowId;
+    private long mOtherLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        mLocationRowId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationRowId = insertLocation(OTHER_LOCATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private static long getDate(ContentValues[] values, int day) {
+        return WeatherContract.normalizeDate(values[day].getAsLong(WeatherEntry.COLUMN_DATE));
+    }
+
+    private TestUtilities.TestContentObserver observe(Uri uri) {
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    private ChangeNotifier getNotifier() {
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        ChangeNotifier notifier = ((WeatherProvider) client.getLocalContentProvider()).getNotifier();
+        client.release();
+        return notifier;
+    }
+
+    private void stopObserving(TestUtilities.TestContentObserver... observers) {
+        for (TestUtilities.TestContentObserver observer : observers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            observer.mHT.quit();
+        }
+    }
+
+    public void testCoalescing() {
+        long date = TestUtilities.TEST_DATE;
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, date);
+        Uri locationUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+
+        // The same day twice is still just that day
+        ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
+        changes.addWeather(TestUtilities.TEST_LOCATION, WeatherContract.normalizeDate(date));
+        changes.addWeather(TestUtilities.TEST_LOCATION, WeatherContract.normalizeDate(date));
+        List<Uri> uris = changes.toUris();
+        assertEquals(1, uris.size());
+        assertEquals(dayUri, uris.get(0));
+
+        // Another day of the same location widens it to the location
+        ChangeNotifier.Changes otherDay = new ChangeNotifier.Changes();
+        otherDay.addWeather(TestUtilities.TEST_LOCATION,
+                WeatherContract.normalizeDate(date + 1000 * 60 * 60 * 24));
+        changes.addAll(otherDay);
+        uris = changes.toUris();
+        assertEquals(1, uris.size());
+        assertEquals(locationUri, uris.get(0));
+
+        // Other URIs are kept as they are, each once
+        changes.add(LocationEntry.CONTENT_URI);
+        changes.add(LocationEntry.CONTENT_URI);
+        assertEquals(2, changes.toUris().size());
+
+        // And the whole weather table covers every location and day
+        changes.add(WeatherEntry.CONTENT_URI);
+        uris = changes.toUris();
+        assertEquals(2, uris.size());
+        assertTrue(uris.contains(WeatherEntry.CONTENT_URI));
+        assertTrue(uris.contains(LocationEntry.CONTENT_URI));
+    }
+
+    /*
+        A merge that changes one day reaches that day's observers and the location's forecast,
+        but not the location's other days.
+     */
+    public void testSingleDayChange() {
+        // ContentResolver.call was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        ContentValues[] values = TestProvider.createBulkInsertWeatherValues(mLocationRowId);
+        TestProvider.mergeWeather(mContext, values);
+        TestUtilities.flushNotifications(mContext);
+
+        Uri changedDayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                getDate(values, 1));
+        Uri otherDayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                getDate(values, 2));
+        TestUtilities.TestContentObserver forecastObserver =
+                observe(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        TestUtilities.TestContentObserver changedDayObserver = observe(changedDayUri);
+        TestUtilities.TestContentObserver otherDayObserver = observe(otherDayUri);
+
+        values[1].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        TestProvider.mergeWeather(mContext, values);
+
+        assertEquals(1, forecastObserver.waitForNotificationCount());
+        assertEquals(1, changedDayObserver.waitForNotificationCount());
+        assertEquals(0, otherDayObserver.mChangeCount);
+        stopObserving(forecastObserver, changedDayObserver, otherDayObserver);
+    }
+
+    /*
+        A write of one row, like the UI makes, isn't held back: its observers are notified
+        before the write returns.
+     */
+    public void testSingleWriteNotifiedRightAway() {
+        // getLocalContentProvider was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        ChangeNotifier notifier = getNotifier();
+        int notificationsBefore = notifier.getNotificationCount();
+
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        assertEquals(1, mContext.getContentResolver().update(LocationEntry.CONTENT_URI, values,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mOtherLocationRowId)}));
+        assertEquals("Error: the update's notification was held back",
+                notificationsBefore + 1, notifier.getNotificationCount());
+    }
+
+    /*
+        Replays the writes of a sync of one location: the first days on their own, then the
+        whole forecast, then the location status in a batch.  The counts are logged along
+        with what one notification per written row, as merges used to send, would have been.
+     */
+    public void testSyncRequeries() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        ContentValues[] values = TestProvider.createBulkInsertWeatherValues(mLocationRowId);
+        TestProvider.mergeWeather(mContext, values);
+        TestProvider.mergeWeather(mContext,
+                TestProvider.createBulkInsertWeatherValues(mOtherLocationRowId));
+        TestUtilities.flushNotifications(mContext);
+
+        ChangeNotifier notifier = getNotifier();
+        int notificationsBefore = notifier.getNotificationCount();
+
+        TestUtilities.TestContentObserver forecastObserver =
+                observe(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        TestUtilities.TestContentObserver otherForecastObserver =
+                observe(WeatherEntry.buildWeatherLocation(OTHER_LOCATION));
+        TestUtilities.TestContentObserver locationObserver = observe(LocationEntry.CONTENT_URI);
+
+        long start = SystemClock.elapsedRealtime();
+        int changedRows = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i].put(WeatherEntry.COLUMN_MAX_TEMP, 90 + i);
+        }
+        ContentValues[] firstDays = {values[0], values[1]};
+        changedRows += TestProvider.mergeWeather(mContext, firstDays)
+                .getInt(WeatherEntry.EXTRA_UPDATED);
+        changedRows += TestProvider.mergeWeather(mContext, values)
+                .getInt(WeatherEntry.EXTRA_UPDATED);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_SYNC_STATUS, 0)
+                .withSelection(LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{TestUtilities.TEST_LOCATION})
+                .build());
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        long writeMillis = SystemClock.elapsedRealtime() - start;
+
+        int forecastRequeries = forecastObserver.waitForNotificationCount();
+        int locationRequeries = locationObserver.waitForNotificationCount();
+        int otherForecastRequeries = otherForecastObserver.mChangeCount;
+        stopObserving(forecastObserver, otherForecastObserver, locationObserver);
+
+        assertEquals(values.length, changedRows);
+        assertEquals(0, otherForecastRequeries);
+        assertEquals(1, locationRequeries);
+        // The writes are usually well within one window, but a slow device may split them
+        assertTrue("Error: the forecast was notified " + forecastRequeries + " times",
+                forecastRequeries >= 1 && forecastRequeries <= 2);
+
+        Log.i(LOG_TAG, String.format("Sync writes took %d ms: forecast loader requeries %d " +
+                        "(%d with one notification per row), other location %d, " +
+                        "locations %d, %d URIs notified",
+                writeMillis, forecastRequeries, changedRows, otherForecastRequeries,
+                locationRequeries, notifier.getNotificationCount() - notificationsBefore));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Checks that METHOD_CURRENT_CONDITIONS answers what the cursor route to the same forecast
+    reads, and compares the two for latency and allocations, with and without the provider's
+    cache.
+ */
+public class TestCurrentConditions extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestCurrentConditions.class.getSimpleName();
+
+    private static final int READS = 500;
+
+    // What the widget, Muzei and the notification used to read through query()
+    private static final String[] CURRENT_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    private long mLocationRowId;
+    private WeatherRowCache mRowCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mLocationRowId));
+
+        // getLocalContentProvider and ContentResolver.call were added in API level 11
+        if ( Build.VERSION.SDK_INT >= 11 ) {
+            ContentProviderClient client = mContext.getContentResolver()
+                    .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+            mRowCache = ((WeatherProvider) client.getLocalContentProvider()).getRowCache();
+            client.release();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private Bundle call(String locationSetting) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE);
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_CURRENT_CONDITIONS, locationSetting, extras);
+    }
+
+    private Cursor query() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        return mContext.getContentResolver().query(uri, CURRENT_PROJECTION, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    public void testMatchesCursor() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        Cursor cursor = query();
+        assertTrue("Error: no weather to compare with", cursor.moveToFirst());
+        Bundle result = call(TestUtilities.TEST_LOCATION);
+        assertEquals(cursor.getLong(0), result.getLong(WeatherEntry.COLUMN_DATE));
+        assertEquals(cursor.getInt(1), result.getInt(WeatherEntry.COLUMN_WEATHER_ID));
+        assertEquals(cursor.getDouble(2), result.getDouble(WeatherEntry.COLUMN_MAX_TEMP));
+        assertEquals(cursor.getDouble(3), result.getDouble(WeatherEntry.COLUMN_MIN_TEMP));
+        assertEquals(cursor.getString(4), result.getString(WeatherEntry.COLUMN_SHORT_DESC));
+        cursor.close();
+
+        // The second call is served from memory and reads the same
+        int hits = mRowCache.getHitCount();
+        Bundle cached = call(TestUtilities.TEST_LOCATION);
+        assertEquals(hits + 1, mRowCache.getHitCount());
+        assertEquals(result.getDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                cached.getDouble(WeatherEntry.COLUMN_MAX_TEMP));
+
+        // A caller changing the Bundle it got must not change what's cached
+        cached.putDouble(WeatherEntry.COLUMN_MAX_TEMP, -1);
+        assertEquals(result.getDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                call(TestUtilities.TEST_LOCATION).getDouble(WeatherEntry.COLUMN_MAX_TEMP));
+    }
+
+    public void testUnknownLocationIsEmpty() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        assertTrue(call("no such place").isEmpty());
+    }
+
+    public void testWriteInvalidates() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        call(TestUtilities.TEST_LOCATION);
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 81);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values, null, null);
+        assertEquals(81.0, call(TestUtilities.TEST_LOCATION)
+                .getDouble(WeatherEntry.COLUMN_MAX_TEMP));
+    }
+
+    /*
+        Times READS reads through one of the routes, each after dropping the provider's cache if
+        cold, and logs their latencies along with what they allocated on this thread.
+     */
+    private void benchmark(String route, boolean useCall, boolean cold) {
+        long[] latencies = new long[READS];
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < READS; i++) {
+            if (cold) {
+                mRowCache.invalidate();
+            }
+            long start = System.nanoTime();
+            if (useCall) {
+                Bundle result = call(TestUtilities.TEST_LOCATION);
+                assertTrue(result.containsKey(WeatherEntry.COLUMN_DATE));
+                result.getDouble(WeatherEntry.COLUMN_MAX_TEMP);
+            } else {
+                Cursor cursor = query();
+                assertTrue(cursor.moveToFirst());
+                cursor.getDouble(2);
+                cursor.close();
+            }
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        Debug.stopAllocCounting();
+        int allocCount = Debug.getThreadAllocCount();
+        int allocSize = Debug.getThreadAllocSize();
+        Arrays.sort(latencies);
+        Log.i(LOG_TAG, String.format("%s, %s: p50 %d us, p95 %d us, %d allocations " +
+                        "(%d bytes) per read",
+                route, cold ? "cold" : "warm", TestUtilities.percentile(latencies, 50),
+                TestUtilities.percentile(latencies, 95), allocCount / READS, allocSize / READS));
+    }
+
+    /*
+        Compares the cached and uncached routes, cold and warm.  Allocations are counted on this
+        thread only, which with the provider in the same process includes its side.
+     */
+    public void testBenchmarkCurrentConditions() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        for (boolean cold : new boolean[]{true, false}) {
+            benchmark("cursor", false, cold);
+            benchmark("call", true, cold);
+        }
+    }
+}
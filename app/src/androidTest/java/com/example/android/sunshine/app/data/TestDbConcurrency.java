@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/*
+    Reads the forecast the way the loaders and widgets do while another thread writes like a
+    heavy sync, on a database in rollback journal mode and then on one with write-ahead
+    logging, and logs how long the reads took in each.  Each mode gets a database file of its
+    own, the app's database is left alone.
+ */
+public class TestDbConcurrency extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbConcurrency.class.getSimpleName();
+
+    private static final String ROLLBACK_DATABASE = "weather_concurrency_rollback.db";
+    private static final String WAL_DATABASE = "weather_concurrency_wal.db";
+    private static final String LOCATION = "99705";
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    // Rows written by every transaction of the writer, and for how long it keeps writing
+    private static final int ROWS_PER_TRANSACTION = 2000;
+    private static final long WRITE_MILLIS = 3000;
+
+    private static final String READ_SQL = "SELECT " +
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID + ", " +
+            WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP +
+            " FROM " + WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+            " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY + " = " +
+            LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+            " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " >= ? ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC LIMIT 14";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(ROLLBACK_DATABASE);
+        mContext.deleteDatabase(WAL_DATABASE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(ROLLBACK_DATABASE);
+        mContext.deleteDatabase(WAL_DATABASE);
+        super.tearDown();
+    }
+
+    private static String journalMode(SQLiteDatabase db) {
+        return DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+    }
+
+    public void testWriteAheadLogging() {
+        // Write-ahead logging was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertEquals("Error: the weather database isn't using write-ahead logging",
+                "wal", journalMode(db).toLowerCase());
+        // Asked on the connection writes go through, which is the one it was set for
+        db.beginTransaction();
+        try {
+            assertEquals(WeatherDbHelper.WAL_AUTOCHECKPOINT_PAGES,
+                    DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint", null));
+        } finally {
+            db.endTransaction();
+        }
+
+        int[] frames = dbHelper.checkpoint(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Older SQLite checkpoints without saying how far it got
+            assertNotNull(frames);
+            assertTrue("Error: more frames checkpointed than in the log", frames[1] <= frames[0]);
+        }
+        dbHelper.close();
+    }
+
+    public void testRollbackJournal() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, ROLLBACK_DATABASE, false);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertFalse("wal".equalsIgnoreCase(journalMode(db)));
+        assertNull(dbHelper.checkpoint(db));
+        dbHelper.close();
+    }
+
+    private static long insertLocation(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, LOCATION);
+        values.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        return db.insert(LocationEntry.TABLE_NAME, null, values);
+    }
+
+    /*
+        Rewrites a block of days per transaction, like a sync's merge, and deletes the oldest
+        ones, like the delete of old rows that follows it.
+     */
+    private static void writeLikeASync(SQLiteDatabase db, long locationId, long until) {
+        WeatherRows rows = new WeatherRows(ROWS_PER_TRANSACTION);
+        int round = 0;
+        while (System.currentTimeMillis() < until) {
+            rows.clear();
+            long date = TestUtilities.TEST_DATE + round * DAY_IN_MILLIS;
+            for (int i = 0; i < ROWS_PER_TRANSACTION; i++, date += DAY_IN_MILLIS) {
+                rows.add(locationId, date, "Asteroids", 321, 65 - i % 10, 75 + i % 10,
+                        40 + i % 10, 1000.5, 5.5, 1.1);
+            }
+            db.beginTransaction();
+            WeatherBatchWriter writer = new WeatherBatchWriter(db);
+            try {
+                for (int i = 0; i < rows.size(); i++) {
+                    writer.insert(rows, i);
+                }
+                db.delete(WeatherEntry.TABLE_NAME, WeatherEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(TestUtilities.TEST_DATE + round * DAY_IN_MILLIS)});
+                db.setTransactionSuccessful();
+            } finally {
+                writer.close();
+                db.endTransaction();
+            }
+            round++;
+        }
+    }
+
+    /*
+        @return the latency of every read in microseconds, sorted
+     */
+    private long[] readWhileWriting(String databaseName, boolean writeAheadLogging)
+            throws InterruptedException {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, databaseName, writeAheadLogging);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        final long locationId = insertLocation(db);
+        final long until = System.currentTimeMillis() + WRITE_MILLIS;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLikeASync(db, locationId, until);
+            }
+        }, "TestDbConcurrency writer");
+        writer.start();
+
+        ArrayList<Long> latencies = new ArrayList<Long>();
+        String[] args = {LOCATION, Long.toString(TestUtilities.TEST_DATE)};
+        while (System.currentTimeMillis() < until) {
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(READ_SQL, args);
+            cursor.getCount();
+            cursor.close();
+            latencies.add((System.nanoTime() - start) / 1000);
+            Thread.sleep(5);
+        }
+        writer.join();
+        dbHelper.close();
+
+        Collections.sort(latencies);
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        return sorted;
+    }
+
+    /*
+        Logs how long the UI's reads take while a sync writes, per query.
+     */
+    public void testBenchmarkReadsDuringSync() throws InterruptedException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        String[] names = {"rollback journal", "write-ahead log"};
+        long[][] latencies = {
+                readWhileWriting(ROLLBACK_DATABASE, false),
+                readWhileWriting(WAL_DATABASE, true)
+        };
+        for (int i = 0; i < names.length; i++) {
+            long[] sorted = latencies[i];
+            assertTrue(sorted.length > 0);
+            Log.i(LOG_TAG, String.format("%s: %d reads during writes, p50 %d us, p95 %d us, " +
+                            "max %d us",
+                    names[i], sorted.length, TestUtilities.percentile(sorted, 50), TestUtilities.percentile(sorted, 95),
+                    sorted[sorted.length - 1]));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Creates databases the way each earlier version of the app left them, fills them with years
+    of forecasts for many locations, and opens them with WeatherDbHelper.  The upgrade has to
+    keep every row, end up with the same schema as a new database, and stay quick on a big
+    history, since it runs on the first read after the app is updated.
+ */
+public class TestDbUpgrade extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbUpgrade.class.getSimpleName();
+
+    private static final String UPGRADED_DATABASE = "weather_upgrade.db";
+    private static final String NEW_DATABASE = "weather_upgrade_new.db";
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int LOCATIONS = 30;
+    private static final int DAYS = 3 * 365;
+    // Far more than the upgrade should need, it mostly adds columns, builds two indexes and
+    // copies the location table
+    private static final long MAX_UPGRADE_MILLIS = 5000;
+
+    // The tables as earlier versions created them.  Written out rather than built from the
+    // contract, which only describes the current schema.
+    private static final String V2_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL  );";
+
+    private static final String V3_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL, " +
+            "tracked INTEGER NOT NULL DEFAULT 0, " +
+            "sync_status INTEGER, " +
+            "last_sync INTEGER  );";
+
+    // Version 4 only added indexes
+    private static final String V4_LOCATION_INDEX =
+            "CREATE INDEX location_tracked ON location (tracked);";
+    private static final String V4_WEATHER_INDEX =
+            "CREATE INDEX weather_location_date ON weather (location_id, date);";
+
+    // The same in versions 2 to 4
+    private static final String V2_WEATHER_TABLE = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+            " UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(UPGRADED_DATABASE);
+        mContext.deleteDatabase(NEW_DATABASE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(UPGRADED_DATABASE);
+        mContext.deleteDatabase(NEW_DATABASE);
+        super.tearDown();
+    }
+
+    private SQLiteDatabase createDatabase(int version, String... tables) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(UPGRADED_DATABASE,
+                Context.MODE_PRIVATE, null);
+        for (String table : tables) {
+            db.execSQL(table);
+        }
+        db.setVersion(version);
+        return db;
+    }
+
+    /*
+        Fills in LOCATIONS locations with DAYS days of weather each, with only the columns
+        every version has.
+     */
+    private static void fill(SQLiteDatabase db) {
+        SQLiteStatement insertLocation = db.compileStatement("INSERT INTO location " +
+                "(location_setting, city_name, coord_lat, coord_long) VALUES (?, ?, ?, ?)");
+        SQLiteStatement insertWeather = db.compileStatement("INSERT INTO weather " +
+                "(location_id, date, short_desc, weather_id, min, max, humidity, pressure, " +
+                "wind, degrees) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < LOCATIONS; i++) {
+                insertLocation.bindString(1, Integer.toString(10000 + i));
+                insertLocation.bindString(2, "City " + i);
+                insertLocation.bindDouble(3, 64.7488);
+                insertLocation.bindDouble(4, -147.353);
+                long locationId = insertLocation.executeInsert();
+
+                long date = TestUtilities.TEST_DATE;
+                for (int day = 0; day < DAYS; day++, date += DAY_IN_MILLIS) {
+                    insertWeather.bindLong(1, locationId);
+                    insertWeather.bindLong(2, date);
+                    insertWeather.bindString(3, "Asteroids");
+                    insertWeather.bindLong(4, 321);
+                    insertWeather.bindDouble(5, 65 - day % 10);
+                    insertWeather.bindDouble(6, 75 + day % 10);
+                    insertWeather.bindDouble(7, 40 + day % 10);
+                    insertWeather.bindDouble(8, 1000.5);
+                    insertWeather.bindDouble(9, 5.5);
+                    insertWeather.bindDouble(10, 1.1);
+                    insertWeather.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertLocation.close();
+            insertWeather.close();
+        }
+    }
+
+    // A fingerprint of the stored weather, to tell that no row was lost or changed
+    private static String summarizeWeather(SQLiteDatabase db) {
+        return DatabaseUtils.stringForQuery(db, "SELECT COUNT(*) || ' ' || SUM(" +
+                WeatherEntry.COLUMN_LOC_KEY + ") || ' ' || SUM(" + WeatherEntry.COLUMN_DATE +
+                ") || ' ' || SUM(" + WeatherEntry.COLUMN_MAX_TEMP + ") FROM " +
+                WeatherEntry.TABLE_NAME, null);
+    }
+
+    private static List<String> describeSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        for (String table : new String[]{LocationEntry.TABLE_NAME, WeatherEntry.TABLE_NAME}) {
+            Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            while (cursor.moveToNext()) {
+                // name, type, notnull, dflt_value and pk
+                schema.add(table + "." + cursor.getString(1) + " " + cursor.getString(2) + " " +
+                        cursor.getInt(3) + " " + cursor.getString(4) + " " + cursor.getInt(5));
+            }
+            cursor.close();
+        }
+        Cursor cursor = db.rawQuery("SELECT tbl_name, name FROM sqlite_master " +
+                "WHERE type = 'index' ORDER BY tbl_name, name", null);
+        while (cursor.moveToNext()) {
+            schema.add("index " + cursor.getString(0) + "." + cursor.getString(1));
+        }
+        cursor.close();
+        return schema;
+    }
+
+    private List<String> describeNewSchema() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, NEW_DATABASE, true);
+        List<String> schema = describeSchema(dbHelper.getReadableDatabase());
+        dbHelper.close();
+        return schema;
+    }
+
+    /*
+        Opens the database, which upgrades it, and checks what came out of it.
+     */
+    private void assertUpgraded(int version, String weatherBefore) {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, UPGRADED_DATABASE, true);
+        long start = System.nanoTime();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long upgradeMillis = (System.nanoTime() - start) / 1000000;
+        Log.i(LOG_TAG, String.format("Upgrade from version %d with %d weather rows: %d ms",
+                version, LOCATIONS * DAYS, upgradeMillis));
+
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals("Error: the upgrade from version " + version + " lost weather",
+                weatherBefore, summarizeWeather(db));
+        assertEquals(LOCATIONS, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM " + LocationEntry.TABLE_NAME, null));
+        assertEquals("Error: the upgrade from version " + version + " doesn't match a new " +
+                "database", describeNewSchema(), describeSchema(db));
+        assertTrue("Error: the upgrade from version " + version + " took " + upgradeMillis +
+                " ms", upgradeMillis < MAX_UPGRADE_MILLIS);
+        dbHelper.close();
+    }
+
+    public void testUpgradeFromVersion2() {
+        SQLiteDatabase db = createDatabase(2, V2_LOCATION_TABLE, V2_WEATHER_TABLE);
+        fill(db);
+        String weatherBefore = summarizeWeather(db);
+        db.close();
+
+        assertUpgraded(2, weatherBefore);
+
+        // Locations from before tracking was added are the preferred one, which is always
+        // synced without being tracked
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, UPGRADED_DATABASE, true);
+        assertEquals(0, DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + LocationEntry.TABLE_NAME + " WHERE " +
+                        LocationEntry.COLUMN_TRACKED + " != 0", null));
+        dbHelper.close();
+    }
+
+    public void testUpgradeFromVersion3() {
+        SQLiteDatabase db = createDatabase(3, V3_LOCATION_TABLE, V2_WEATHER_TABLE);
+        fill(db);
+        String weatherBefore = summarizeWeather(db);
+        db.close();
+
+        assertUpgraded(3, weatherBefore);
+    }
+
+    /*
+        Version 5 lets the coordinates be NULL.  Locations tracked before their first sync had
+        0,0 made up for them, which the upgrade takes back out.
+     */
+    public void testUpgradeFromVersion4() {
+        SQLiteDatabase db = createDatabase(4, V3_LOCATION_TABLE, V2_WEATHER_TABLE,
+                V4_LOCATION_INDEX, V4_WEATHER_INDEX);
+        fill(db);
+        db.execSQL("INSERT INTO location (location_setting, city_name, coord_lat, coord_long, " +
+                "tracked) VALUES ('99999', '99999', 0, 0, 1)");
+        String weatherBefore = summarizeWeather(db);
+        db.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, UPGRADED_DATABASE, true);
+        db = dbHelper.getReadableDatabase();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        assertEquals(weatherBefore, summarizeWeather(db));
+        assertEquals("Error: the upgrade changed the coordinates of synced locations",
+                LOCATIONS, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                        LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_COORD_LAT +
+                        " = 64.7488", null));
+        assertEquals("Error: the placeholder kept its made up coordinates",
+                1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                        LocationEntry.TABLE_NAME + " WHERE " + LocationEntry.COLUMN_COORD_LAT +
+                        " IS NULL AND " + LocationEntry.COLUMN_TRACKED + " = 1", null));
+        assertEquals(describeNewSchema(), describeSchema(db));
+        dbHelper.close();
+    }
+
+    public void testOlderVersionsAreRecreated() {
+        // Nothing is known about version 1, any table of the same name is replaced
+        SQLiteDatabase db = createDatabase(1, "CREATE TABLE weather (_id INTEGER PRIMARY KEY)");
+        db.execSQL("INSERT INTO weather (_id) VALUES (1)");
+        db.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, UPGRADED_DATABASE, true);
+        db = dbHelper.getWritableDatabase();
+        assertEquals(0, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME, null));
+        assertEquals(describeNewSchema(), describeSchema(db));
+        dbHelper.close();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Checks the location upsert and the id cache it fills: a known location is found without
+    going to the provider, and the writes that can change what a setting maps to drop it.
+ */
+public class TestLocationIdCache extends AndroidTestCase {
+
+    private static final String LOCATION = "99705";
+    private static final String CITY = "North Pole";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private long upsert(String cityName, double lat, double lon) {
+        Bundle extras = new Bundle();
+        extras.putString(LocationEntry.COLUMN_LOCATION_SETTING, LOCATION);
+        extras.putString(LocationEntry.COLUMN_CITY_NAME, cityName);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LAT, lat);
+        extras.putDouble(LocationEntry.COLUMN_COORD_LONG, lon);
+        Bundle result = mContext.getContentResolver().call(LocationEntry.CONTENT_URI,
+                LocationEntry.METHOD_UPSERT, null, extras);
+        return result.getLong(LocationEntry.EXTRA_LOCATION_ID);
+    }
+
+    private Cursor queryLocation() {
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_CITY_NAME},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{LOCATION}, null);
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    public void testUpsertInsertsThenUpdates() {
+        // ContentResolver.call was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        long locationId = upsert(LOCATION, 0, 0);
+        assertTrue(locationId != -1);
+        assertEquals("Error: upserting the same location twice gave two rows",
+                locationId, upsert(LOCATION, 0, 0));
+
+        // The placeholder name gets replaced, and the row keeps its id
+        assertEquals(locationId, upsert(CITY, 64.7488, -147.353));
+        Cursor cursor = queryLocation();
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(locationId, cursor.getLong(0));
+        assertEquals(CITY, cursor.getString(1));
+        cursor.close();
+    }
+
+    public void testUpsertFillsCache() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        LocationIdCache cache = LocationIdCache.getInstance();
+        assertEquals(-1, cache.get(LOCATION, CITY));
+        long locationId = upsert(CITY, 64.7488, -147.353);
+
+        int hits = cache.getHitCount();
+        assertEquals(locationId, cache.get(LOCATION, CITY));
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // Another city name for the setting means the row needs writing again
+        assertEquals(-1, cache.get(LOCATION, "Santa's Village"));
+    }
+
+    public void testWritesInvalidateCache() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        LocationIdCache cache = LocationIdCache.getInstance();
+        long locationId = upsert(CITY, 64.7488, -147.353);
+
+        // What every sync writes to the location doesn't affect the cache
+        ContentValues status = new ContentValues();
+        status.put(LocationEntry.COLUMN_SYNC_STATUS, 0);
+        status.put(LocationEntry.COLUMN_LAST_SYNC, System.currentTimeMillis());
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, status, null, null);
+        assertEquals(locationId, cache.get(LOCATION, CITY));
+
+        ContentValues city = new ContentValues();
+        city.put(LocationEntry.COLUMN_CITY_NAME, "Somewhere else");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, city, null, null);
+        assertEquals("Error: renaming the city didn't invalidate the cache",
+                -1, cache.get(LOCATION, CITY));
+
+        locationId = upsert(CITY, 64.7488, -147.353);
+        assertEquals(locationId, cache.get(LOCATION, CITY));
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals("Error: deleting the location didn't invalidate the cache",
+                -1, cache.get(LOCATION, CITY));
+
+        // Recreated under a new id, which is the one the cache now has
+        long newLocationId = upsert(CITY, 64.7488, -147.353);
+        assertEquals(newLocationId, cache.get(LOCATION, CITY));
+    }
+
+    /*
+        A read while a batch renames the location, here one within the batch itself, caches the
+        location again before the batch commits.  Once it does, the cache has to be dropped
+        again, since reads on other connections would have cached the row from before.
+     */
+    public void testBatchInvalidatesCacheAfterCommit() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        LocationIdCache cache = LocationIdCache.getInstance();
+        upsert(CITY, 64.7488, -147.353);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValue(LocationEntry.COLUMN_CITY_NAME, "Somewhere else")
+                .build());
+        // A projection of weather columns alone, which the provider reads by the cached id
+        operations.add(ContentProviderOperation.newAssertQuery(
+                WeatherEntry.buildWeatherLocation(LOCATION))
+                .withValue(WeatherEntry.COLUMN_DATE, 0L)
+                .withExpectedCount(0)
+                .build());
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        assertNull("Error: a location cached during the batch outlived its commit",
+                cache.find(LOCATION));
+    }
+}
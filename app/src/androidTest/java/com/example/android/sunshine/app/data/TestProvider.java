@@ -16,20 +16,28 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -160,6 +168,11 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_stats/
+        type = mContext.getContentResolver().getType(SyncStatsEntry.CONTENT_URI);
+        assertEquals("Error: the SyncStatsEntry CONTENT_URI should return SyncStatsEntry.CONTENT_TYPE",
+                SyncStatsEntry.CONTENT_TYPE, type);
     }
 
 
@@ -287,6 +300,72 @@ public class TestProvider extends AndroidTestCase {
     }
 
 
+    /*
+        The forecast list asks for the location setting and coordinates along with the weather,
+        which the provider fills in without joining the location table.  They have to read
+        the same as the joined ones, also after the location changes.
+     */
+    public void testWeatherWithLocationColumns() {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                locationValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        String[] projection = {
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                LocationEntry.COLUMN_LOCATION_SETTING,
+                LocationEntry.COLUMN_CITY_NAME,
+                LocationEntry.COLUMN_COORD_LAT,
+                LocationEntry.COLUMN_COORD_LONG
+        };
+        ContentValues expected = new ContentValues();
+        expected.put(WeatherEntry.COLUMN_DATE, weatherValues.getAsLong(WeatherEntry.COLUMN_DATE));
+        expected.put(WeatherEntry.COLUMN_SHORT_DESC,
+                weatherValues.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+        expected.put(LocationEntry.COLUMN_LOCATION_SETTING, TestUtilities.TEST_LOCATION);
+        expected.put(LocationEntry.COLUMN_CITY_NAME,
+                locationValues.getAsString(LocationEntry.COLUMN_CITY_NAME));
+        expected.put(LocationEntry.COLUMN_COORD_LAT,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT));
+        expected.put(LocationEntry.COLUMN_COORD_LONG,
+                locationValues.getAsDouble(LocationEntry.COLUMN_COORD_LONG));
+
+        Uri[] uris = {
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WeatherEntry.buildWeatherLocationWithStartDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                WeatherEntry.buildWeatherLocationWithDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE)
+        };
+        for (Uri uri : uris) {
+            Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                    null);
+            TestUtilities.validateCursor("testWeatherWithLocationColumns. Error validating " +
+                    uri, cursor, expected);
+        }
+
+        // A moved location has to show up in the next read
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, 65.5);
+        moved.put(LocationEntry.COLUMN_COORD_LONG, -148.5);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, moved,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        expected.putAll(moved);
+        Cursor cursor = mContext.getContentResolver().query(uris[0], projection, null, null,
+                null);
+        TestUtilities.validateCursor("testWeatherWithLocationColumns. Error validating the " +
+                "moved location", cursor, expected);
+
+        // Unknown locations have no weather, whichever way they are read
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("00000"), projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
     // Make sure we can still delete after adding/updating stuff
     //
     // Student: Uncomment this test after you have completed writing the insert functionality
@@ -512,4 +591,209 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // A row that can't be inserted is skipped, the others still are.
+    public void testBulkInsertSkipsBadRows() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        values[3].remove(WeatherEntry.COLUMN_SHORT_DESC);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, cursor.getCount());
+        cursor.close();
+    }
+
+    static Bundle mergeWeather(Context context, ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+        return context.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_MERGE, null, extras);
+    }
+
+    // Merging writes only the rows that are new or changed and reports each kind separately.
+    public void testMergeWeather() {
+        // ContentResolver.call was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        Bundle result = mergeWeather(mContext, createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, result.getInt(WeatherEntry.EXTRA_INSERTED));
+        assertEquals(0, result.getInt(WeatherEntry.EXTRA_UPDATED));
+        assertEquals(0, result.getInt(WeatherEntry.EXTRA_UNCHANGED));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertTrue(cursor.moveToFirst());
+        long firstRowId = cursor.getLong(0);
+        cursor.close();
+
+        // The same forecast again, except for the last day
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        values[BULK_INSERT_RECORDS_TO_INSERT - 1].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+
+        // Only the changed day should be announced, not the whole table
+        TestUtilities.TestContentObserver changedDayObserver = TestUtilities.getTestContentObserver();
+        long changedDate = values[BULK_INSERT_RECORDS_TO_INSERT - 1].getAsLong(WeatherEntry.COLUMN_DATE);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, changedDate),
+                false, changedDayObserver);
+
+        result = mergeWeather(mContext, values);
+        assertEquals(0, result.getInt(WeatherEntry.EXTRA_INSERTED));
+        assertEquals(1, result.getInt(WeatherEntry.EXTRA_UPDATED));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, result.getInt(WeatherEntry.EXTRA_UNCHANGED));
+
+        changedDayObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+
+        // Unchanged rows are left alone rather than deleted and inserted again
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(firstRowId, cursor.getLong(0));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, changedDate),
+                null, null, null, null);
+        TestUtilities.validateCursor("testMergeWeather. Error validating updated row.",
+                cursor, values[BULK_INSERT_RECORDS_TO_INSERT - 1]);
+    }
+
+    // A batch across both tables is one transaction, and observers hear about each table once,
+    // after it committed, however many operations touched it.
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues values : weatherValues) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        long firstDate = WeatherContract.normalizeDate(
+                weatherValues[0].getAsLong(WeatherEntry.COLUMN_DATE));
+        long lastDate = WeatherContract.normalizeDate(
+                weatherValues[BULK_INSERT_RECORDS_TO_INSERT - 1].getAsLong(WeatherEntry.COLUMN_DATE));
+        operations.add(ContentProviderOperation.newUpdate(WeatherEntry.CONTENT_URI)
+                .withValue(WeatherEntry.COLUMN_SHORT_DESC, "Meteors")
+                .withSelection(WeatherEntry.COLUMN_DATE + " = ?",
+                        new String[]{Long.toString(lastDate)})
+                .build());
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " = ?",
+                        new String[]{Long.toString(firstDate)})
+                .build());
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true, locationObserver);
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        assertEquals(1, locationObserver.waitForNotificationCount());
+        assertEquals(1, weatherObserver.waitForNotificationCount());
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(operations.size(), results.length);
+        assertEquals(1, (int) results[results.length - 2].count);
+        assertEquals(1, (int) results[results.length - 1].count);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals("Meteors", cursor.getString(0));
+        cursor.close();
+    }
+
+    // A batch whose last operation fails leaves nothing of the earlier ones behind.
+    public void testApplyBatchRollsBack() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                .withExpectedCount(2)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the assertion in the batch should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: the batch wasn't rolled back", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Sync timings go into ring buffers, one per stage, and come back out as percentiles.
+     */
+    public void testSyncStats() {
+        mContext.getContentResolver().delete(SyncStatsEntry.CONTENT_URI, null, null);
+
+        // More samples than the buffer holds, the first ones should fall out
+        int sampleCount = SyncStatsEntry.MAX_SAMPLES + 100;
+        ContentValues[] samples = new ContentValues[sampleCount + 1];
+        for (int i = 0; i < sampleCount; i++) {
+            samples[i] = new ContentValues();
+            samples[i].put(SyncStatsEntry.COLUMN_STAGE, SyncStatsEntry.STAGE_DOWNLOAD);
+            samples[i].put(SyncStatsEntry.COLUMN_DURATION, i + 1);
+            samples[i].put(SyncStatsEntry.COLUMN_BYTES, 10);
+        }
+        samples[sampleCount] = new ContentValues();
+        samples[sampleCount].put(SyncStatsEntry.COLUMN_STAGE, SyncStatsEntry.STAGE_PARSE);
+        samples[sampleCount].put(SyncStatsEntry.COLUMN_DURATION, 42);
+        mContext.getContentResolver().bulkInsert(SyncStatsEntry.CONTENT_URI, samples);
+
+        Cursor cursor = mContext.getContentResolver().query(SyncStatsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: expected one row per stage", 2, cursor.getCount());
+
+        // Stages come back in the order they were first recorded
+        assertTrue(cursor.moveToFirst());
+        assertEquals(SyncStatsEntry.STAGE_DOWNLOAD,
+                cursor.getString(cursor.getColumnIndex(SyncStatsEntry.COLUMN_STAGE)));
+        int max = SyncStatsEntry.MAX_SAMPLES;
+        int oldest = sampleCount - max + 1;
+        assertEquals(max, cursor.getInt(cursor.getColumnIndex(SyncStatsEntry.COLUMN_SAMPLES)));
+        assertEquals(oldest + max / 2 - 1,
+                cursor.getLong(cursor.getColumnIndex(SyncStatsEntry.COLUMN_P50)));
+        assertEquals(oldest + (int) Math.ceil(max * 0.95) - 1,
+                cursor.getLong(cursor.getColumnIndex(SyncStatsEntry.COLUMN_P95)));
+        assertEquals(sampleCount, cursor.getLong(cursor.getColumnIndex(SyncStatsEntry.COLUMN_MAX)));
+        assertEquals(max * 10,
+                cursor.getLong(cursor.getColumnIndex(SyncStatsEntry.COLUMN_TOTAL_BYTES)));
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(SyncStatsEntry.STAGE_PARSE,
+                cursor.getString(cursor.getColumnIndex(SyncStatsEntry.COLUMN_STAGE)));
+        assertEquals(42, cursor.getLong(cursor.getColumnIndex(SyncStatsEntry.COLUMN_P95)));
+        cursor.close();
+
+        mContext.getContentResolver().delete(SyncStatsEntry.CONTENT_URI, null, null);
+        cursor = mContext.getContentResolver().query(SyncStatsEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
 }
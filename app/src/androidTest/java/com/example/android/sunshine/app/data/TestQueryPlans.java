@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the SQL behind every route of the provider, and on the writes
+    the sync repeats for every row or location, and fails if SQLite would read a whole table or
+    index, or sort the result in a temporary B-tree.  A new route or query should be added
+    here.
+
+    The benchmark fills a database with years of daily history for many locations and logs how
+    long the forecast reads take through the join, from the weather table alone, and without
+    the indexes.  The plans and the benchmark both use a database file of their own, the app's
+    database is left alone.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String DATABASE = "weather_query_plans.db";
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final String LOCATION_SETTING = "99705";
+
+    // Like the columns of the forecast list, both tables are read
+    private static final String[] FORECAST_PROJECTION = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private static final int[] LOCATION_COUNTS = {10, 50};
+    private static final int[] YEARS = {1, 5};
+    private static final int READS = 100;
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE);
+        mDbHelper = new WeatherDbHelper(mContext, DATABASE, true);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE);
+        super.tearDown();
+    }
+
+    /*
+        @return the detail column of every step of the plan
+     */
+    private List<String> explain(String sql) {
+        // Nothing is bound, the plan doesn't depend on the values
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        List<String> plan = new ArrayList<String>();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private void assertIndexedPlan(String name, String sql) {
+        List<String> plan = explain(sql);
+        Log.d(LOG_TAG, name + ": " + plan);
+        assertFalse("Error: no query plan for " + name, plan.isEmpty());
+        for (String step : plan) {
+            // "SCAN TABLE x" on older versions of SQLite, "SCAN x" on newer ones, with
+            // "USING INDEX" when it walks a whole index instead
+            assertFalse("Error: " + name + " reads everything: " + plan,
+                    step.startsWith("SCAN"));
+            assertFalse("Error: " + name + " sorts in a temporary B-tree: " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+    }
+
+    private void assertIndexedRoute(String name, Uri uri, String[] projection, String selection,
+                                    String sortOrder) {
+        String sql = WeatherProvider.buildQuery(uri, projection, selection, sortOrder);
+        assertNotNull("Error: " + uri + " isn't read from the database", sql);
+        assertIndexedPlan(name, sql);
+    }
+
+    public void testWeatherWithLocationPlans() {
+        // The format of EXPLAIN QUERY PLAN checked here is the one of SQLite 3.7.4, which came
+        // with API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        Uri fromStartDate = WeatherEntry.buildWeatherLocationWithStartDate(LOCATION_SETTING,
+                TestUtilities.TEST_DATE);
+        Uri wholeForecast = WeatherEntry.buildWeatherLocation(LOCATION_SETTING);
+        Uri oneDay = WeatherEntry.buildWeatherLocationWithDate(LOCATION_SETTING,
+                TestUtilities.TEST_DATE);
+
+        // Read from the weather table alone
+        String sql = WeatherProvider.buildQuery(fromStartDate, FORECAST_PROJECTION, null,
+                DATE_ORDER);
+        assertFalse("Error: the forecast list's read still joins the location table",
+                sql.contains(" JOIN "));
+        assertIndexedRoute("forecast from a start date", fromStartDate, FORECAST_PROJECTION,
+                null, DATE_ORDER);
+        assertIndexedRoute("whole forecast", wholeForecast, FORECAST_PROJECTION, null,
+                DATE_ORDER);
+        assertIndexedRoute("one day", oneDay, FORECAST_PROJECTION, null, null);
+
+        // Through the join, for all columns
+        assertIndexedRoute("joined forecast from a start date", fromStartDate, null, null,
+                DATE_ORDER);
+        assertIndexedRoute("joined whole forecast", wholeForecast, null, null, DATE_ORDER);
+        assertIndexedRoute("joined day", oneDay, null, null, null);
+    }
+
+    public void testWeatherPlans() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        assertIndexedRoute("merge lookup", WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                null);
+        assertIndexedRoute("weather of a location id", WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", DATE_ORDER);
+        assertIndexedRoute("past days", WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_DATE + " <= ?", DATE_ORDER);
+
+        // Written through SQLiteDatabase.delete and WeatherBatchWriter, not query()
+        assertIndexedPlan("delete of past days",
+                "DELETE FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherEntry.COLUMN_DATE + " <= ?");
+        assertIndexedPlan("update of a merged row",
+                "UPDATE " + WeatherEntry.TABLE_NAME + " SET " +
+                        WeatherEntry.COLUMN_MAX_TEMP + " = ? WHERE " +
+                        WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherEntry.COLUMN_DATE + " = ?");
+    }
+
+    public void testLocationPlans() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        assertIndexedRoute("location by setting", LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_CITY_NAME},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null);
+        assertIndexedRoute("location by id", LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry._ID + " = ?", null);
+        assertIndexedRoute("tracked locations", LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry.COLUMN_TRACKED + " = 1", null);
+
+        assertIndexedPlan("sync status update",
+                "UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                        LocationEntry.COLUMN_SYNC_STATUS + " = ? WHERE " +
+                        LocationEntry.COLUMN_LOCATION_SETTING + " = ?");
+    }
+
+    public void testSyncStatsIsNotQueried() {
+        assertNull(WeatherProvider.buildQuery(WeatherContract.SyncStatsEntry.CONTENT_URI,
+                null, null, null));
+    }
+
+    private static String locationSetting(int index) {
+        return Integer.toString(10000 + index);
+    }
+
+    /*
+        @return the row ids of the locations
+     */
+    private long[] fill(int locationCount, int days) {
+        long[] locationIds = new long[locationCount];
+        mDb.beginTransaction();
+        WeatherBatchWriter writer = new WeatherBatchWriter(mDb);
+        try {
+            WeatherRows rows = new WeatherRows(days);
+            for (int i = 0; i < locationCount; i++) {
+                ContentValues values = new ContentValues();
+                values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting(i));
+                values.put(LocationEntry.COLUMN_CITY_NAME, "City " + i);
+                values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+                values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+                values.put(LocationEntry.COLUMN_TRACKED, 1);
+                locationIds[i] = mDb.insert(LocationEntry.TABLE_NAME, null, values);
+
+                rows.clear();
+                long date = TestUtilities.TEST_DATE;
+                for (int day = 0; day < days; day++, date += DAY_IN_MILLIS) {
+                    rows.add(locationIds[i], date, "Asteroids", 321, 65 - day % 10,
+                            75 + day % 10, 40 + day % 10, 1000.5, 5.5, 1.1);
+                }
+                for (int row = 0; row < rows.size(); row++) {
+                    writer.insert(rows, row);
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            mDb.endTransaction();
+        }
+        return locationIds;
+    }
+
+    /*
+        Reads each location's forecast in turn, with the arguments of args[location].
+        @return the latency of every read in microseconds, sorted
+     */
+    private long[] timeReads(String sql, String[][] args) {
+        long[] latencies = new long[READS];
+        for (int i = 0; i < READS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mDb.rawQuery(sql, args[i % args.length]);
+            assertTrue(cursor.getCount() > 0);
+            cursor.close();
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /*
+        Logs read latencies for the three ways of reading a forecast.  Each reads from two weeks
+        before the end of the history, like the forecast list reads it from today on: through
+        the join, from the weather table alone the way the provider does once it knows the
+        location, and through the join without the (location_id, date) index.
+     */
+    public void testBenchmarkForecastReads() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        // Only the route matters here, the setting and date are bound for each read
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(LOCATION_SETTING,
+                TestUtilities.TEST_DATE);
+        String joinSql = WeatherProvider.buildJoinQuery(uri, FORECAST_PROJECTION, DATE_ORDER);
+        String weatherOnlySql = WeatherProvider.buildQuery(uri, FORECAST_PROJECTION, null,
+                DATE_ORDER);
+        for (int locationCount : LOCATION_COUNTS) {
+            for (int years : YEARS) {
+                int days = years * 365;
+                String startDate = Long.toString(
+                        TestUtilities.TEST_DATE + (days - 14) * DAY_IN_MILLIS);
+                mDb.delete(WeatherEntry.TABLE_NAME, null, null);
+                mDb.delete(LocationEntry.TABLE_NAME, null, null);
+                long[] locationIds = fill(locationCount, days);
+
+                String[][] joinArgs = new String[locationCount][];
+                String[][] weatherOnlyArgs = new String[locationCount][];
+                for (int i = 0; i < locationCount; i++) {
+                    joinArgs[i] = new String[]{locationSetting(i), startDate};
+                    // The location columns of FORECAST_PROJECTION come first, in its order
+                    weatherOnlyArgs[i] = new String[]{locationSetting(i), "64.7488", "-147.353",
+                            Long.toString(locationIds[i]), startDate};
+                }
+
+                long[] joined = timeReads(joinSql, joinArgs);
+                long[] weatherOnly = timeReads(weatherOnlySql, weatherOnlyArgs);
+                mDb.execSQL("DROP INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+                long[] unindexed = timeReads(joinSql, joinArgs);
+                mDb.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+
+                Log.i(LOG_TAG, String.format("%d locations, %d years (%d rows): join p50 %d us, " +
+                                "p95 %d us, weather alone p50 %d us, p95 %d us, " +
+                                "join without the index p50 %d us, p95 %d us",
+                        locationCount, years, locationCount * days,
+                        TestUtilities.percentile(joined, 50), TestUtilities.percentile(joined, 95),
+                        TestUtilities.percentile(weatherOnly, 50), TestUtilities.percentile(weatherOnly, 95),
+                        TestUtilities.percentile(unindexed, 50), TestUtilities.percentile(unindexed, 95)));
+            }
+        }
+    }
+}
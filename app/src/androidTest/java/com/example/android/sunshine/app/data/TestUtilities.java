@@ -15,14 +15,17 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.content.ContentProviderClient;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
@@ -120,8 +123,12 @@ public class TestUtilities extends AndroidTestCase {
         correct Uri is returned.
      */
     static class TestContentObserver extends ContentObserver {
+        // How long to wait for more notifications once the first one has arrived
+        private static final long SETTLE_MILLIS = 500;
+
         final HandlerThread mHT;
         boolean mContentChanged;
+        volatile int mChangeCount;
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -142,6 +149,7 @@ public class TestUtilities extends AndroidTestCase {
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
+            mChangeCount++;
             mContentChanged = true;
         }
 
@@ -158,9 +166,59 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        /**
+         * Notifications are delivered on the observer's own thread, so after the first one this
+         * gives any others a moment to come in before counting them.
+         * @return how many notifications arrived
+         */
+        public int waitForNotificationCount() {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mContentChanged;
+                }
+            }.run();
+            SystemClock.sleep(SETTLE_MILLIS);
+            mHT.quit();
+            return mChangeCount;
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
+
+    /*
+        The provider holds the notifications of bulk writes back for a moment.  This sends what
+        it holds right away, so that observers registered afterwards only hear about later
+        changes.
+     */
+    static void flushNotifications(Context context) {
+        // getLocalContentProvider was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            SystemClock.sleep(2 * ChangeNotifier.DELAY_MILLIS);
+            return;
+        }
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        ((WeatherProvider) client.getLocalContentProvider()).getNotifier().flush();
+        client.release();
+    }
+
+    /*
+        Empties both tables through the provider.  Deleting the locations also stops tracking
+        them.
+     */
+    public static void deleteAllRecords(Context context) {
+        context.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        context.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        Nearest rank percentile of sorted timings, the same one the sync's stage stats report.
+     */
+    public static long percentile(long[] sorted, int percent) {
+        return SyncStageStats.percentile(sorted, percent);
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Compares the ways weather rows can be written in bulk, on synthetic data:
+      - one SQLiteDatabase.insert per ContentValues, which is what bulkInsert used to do
+      - bulkInsert with ContentValues, now going through the compiled statement
+      - the columnar WeatherRows handed over with ContentResolver.call
+ */
+public class TestWeatherInsertThroughput extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherInsertThroughput.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int[] ROW_COUNTS = {14, 1000, 100000};
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    // Values are kept to ones that print the same from Java and from SQLite, so that
+    // TestUtilities.validateCurrentRecord can compare them as strings
+    static WeatherRows createWeatherRows(long locationRowId, int count) {
+        WeatherRows rows = new WeatherRows(count);
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < count; i++, date += DAY_IN_MILLIS) {
+            rows.add(locationRowId, date, "Asteroids", 321,
+                    65 - i % 10, 75 + i % 10, 40 + i % 10, 1000.5 + i % 10,
+                    5.5 + i % 10, 1.1);
+        }
+        return rows;
+    }
+
+    static ContentValues[] createWeatherValues(long locationRowId, int count) {
+        ContentValues[] values = new ContentValues[count];
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < count; i++, date += DAY_IN_MILLIS) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, date);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 40 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1000.5 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65 - i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + i % 10);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private long insertOneByOne(ContentValues[] values) {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long dateValue = value.getAsLong(WeatherEntry.COLUMN_DATE);
+                value.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+                db.insert(WeatherEntry.TABLE_NAME, null, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long elapsed = System.nanoTime() - start;
+        dbHelper.close();
+        return elapsed;
+    }
+
+    public void testColumnarInsert() {
+        // ContentResolver.call was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        WeatherRows rows = createWeatherRows(mLocationRowId, 14);
+        Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_BULK_INSERT, null, rows.toBundle());
+        assertEquals(14, result.getInt(WeatherEntry.EXTRA_INSERTED));
+
+        // The rows should read back the same as the ContentValues form of the same data
+        ContentValues[] expected = createWeatherValues(mLocationRowId, 14);
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(14, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < 14; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testColumnarInsert. Error validating row " + i,
+                    cursor, expected[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        Times each way of storing a forecast for growing row counts, which must all store
+        every row.
+     */
+    public void testBenchmarkBulkInsert() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        for (int count : ROW_COUNTS) {
+            ContentValues[] values = createWeatherValues(mLocationRowId, count);
+            long oneByOneNanos = insertOneByOne(values);
+            assertEquals(count, countWeatherRows());
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+            values = createWeatherValues(mLocationRowId, count);
+            long start = System.nanoTime();
+            int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+            long bulkInsertNanos = System.nanoTime() - start;
+            assertEquals(count, inserted);
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+            Bundle extras = createWeatherRows(mLocationRowId, count).toBundle();
+            start = System.nanoTime();
+            Bundle result = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                    WeatherEntry.METHOD_BULK_INSERT, null, extras);
+            long columnarNanos = System.nanoTime() - start;
+            assertEquals(count, result.getInt(WeatherEntry.EXTRA_INSERTED));
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+            Log.i(LOG_TAG, String.format("%d rows: insert per row %d ms, bulkInsert %d ms, " +
+                            "columnar %d ms",
+                    count, oneByOneNanos / 1000000, bulkInsertNanos / 1000000,
+                    columnarNanos / 1000000));
+        }
+    }
+}
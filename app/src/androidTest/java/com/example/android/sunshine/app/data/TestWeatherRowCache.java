@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that the provider serves repeated reads of a day or of a forecast from a date out of
+    memory, and that every kind of write drops what it kept.
+ */
+public class TestWeatherRowCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherRowCache.class.getSimpleName();
+
+    private static final String[] DAY_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            LocationEntry.COLUMN_CITY_NAME
+    };
+
+    private long mLocationRowId;
+    private WeatherRowCache mRowCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createWeatherValues(mLocationRowId));
+
+        // getLocalContentProvider was added in API level 11, before which nothing is cached
+        if ( Build.VERSION.SDK_INT >= 11 ) {
+            ContentProviderClient client = mContext.getContentResolver()
+                    .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+            mRowCache = ((WeatherProvider) client.getLocalContentProvider()).getRowCache();
+            client.release();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private static Uri dayUri() {
+        return WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+    }
+
+    private static Uri forecastUri() {
+        return WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+    }
+
+    private Cursor query(Uri uri) {
+        return mContext.getContentResolver().query(uri, DAY_PROJECTION, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private String readMaxTemp(Uri uri) {
+        Cursor cursor = query(uri);
+        assertTrue("Error: no weather for " + uri, cursor.moveToFirst());
+        String maxTemp = cursor.getString(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP));
+        cursor.close();
+        return maxTemp;
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = query(uri);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testRepeatedReadsAreHits() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        ContentValues expected = new ContentValues();
+        ContentValues weatherValues = TestUtilities.createWeatherValues(mLocationRowId);
+        expected.put(WeatherEntry.COLUMN_DATE, weatherValues.getAsLong(WeatherEntry.COLUMN_DATE));
+        expected.put(WeatherEntry.COLUMN_SHORT_DESC,
+                weatherValues.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+        expected.put(WeatherEntry.COLUMN_MAX_TEMP,
+                weatherValues.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP));
+        expected.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+
+        for (Uri uri : new Uri[]{dayUri(), forecastUri()}) {
+            int hits = mRowCache.getHitCount();
+            int misses = mRowCache.getMissCount();
+            TestUtilities.validateCursor("testRepeatedReadsAreHits. Error validating the " +
+                    "first read of " + uri, query(uri), expected);
+            assertEquals(misses + 1, mRowCache.getMissCount());
+
+            Cursor cursor = query(uri);
+            assertEquals(hits + 1, mRowCache.getHitCount());
+            assertEquals(1, cursor.getCount());
+            TestUtilities.validateCursor("testRepeatedReadsAreHits. Error validating the " +
+                    "cached read of " + uri, cursor, expected);
+        }
+        assertTrue(mRowCache.getHitRate() > 0);
+
+        // Another projection is another entry
+        int misses = mRowCache.getMissCount();
+        Cursor cursor = mContext.getContentResolver().query(dayUri(),
+                new String[]{WeatherEntry.COLUMN_MIN_TEMP}, null, null, null);
+        cursor.close();
+        assertEquals(misses + 1, mRowCache.getMissCount());
+    }
+
+    /*
+        Reads the day once so it's cached, and checks that the read after the write is a miss
+        that sees what was written.
+     */
+    private void assertWriteInvalidates(String write, Runnable writer, String expectedMaxTemp) {
+        readMaxTemp(dayUri());
+        int misses = mRowCache.getMissCount();
+        writer.run();
+        assertEquals("Error: " + write + " didn't drop the cached day", expectedMaxTemp,
+                readMaxTemp(dayUri()));
+        assertEquals(misses + 1, mRowCache.getMissCount());
+    }
+
+    private ContentValues weatherWithMaxTemp(double maxTemp) {
+        ContentValues values = TestUtilities.createWeatherValues(mLocationRowId);
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+        return values;
+    }
+
+    public void testWritesInvalidate() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        assertWriteInvalidates("insert", new Runnable() {
+            @Override
+            public void run() {
+                mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                        weatherWithMaxTemp(80));
+            }
+        }, "80.0");
+        assertWriteInvalidates("update", new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(WeatherEntry.COLUMN_MAX_TEMP, 81);
+                mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values, null,
+                        null);
+            }
+        }, "81.0");
+        assertWriteInvalidates("bulkInsert", new Runnable() {
+            @Override
+            public void run() {
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                        new ContentValues[]{weatherWithMaxTemp(82)});
+            }
+        }, "82.0");
+        assertWriteInvalidates("merge", new Runnable() {
+            @Override
+            public void run() {
+                TestProvider.mergeWeather(mContext, new ContentValues[]{weatherWithMaxTemp(83)});
+            }
+        }, "83.0");
+
+        // Locations are part of the joined rows too
+        readMaxTemp(dayUri());
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, values, null, null);
+        Cursor cursor = query(dayUri());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Santa's Village",
+                cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_NAME)));
+        cursor.close();
+
+        readMaxTemp(dayUri());
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        assertEquals(0, count(dayUri()));
+    }
+
+    public void testCachedRealsReadLikeSQLite() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        // Double.toString gives 0.30000000000000004, SQLite rounds to 15 digits
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                weatherWithMaxTemp(0.1 + 0.2));
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        String expected = DatabaseUtils.stringForQuery(dbHelper.getReadableDatabase(),
+                "SELECT " + WeatherEntry.COLUMN_MAX_TEMP + " FROM " + WeatherEntry.TABLE_NAME,
+                null);
+        dbHelper.close();
+
+        assertEquals(expected, readMaxTemp(dayUri()));
+        int hits = mRowCache.getHitCount();
+        assertEquals(expected, readMaxTemp(dayUri()));
+        assertEquals(hits + 1, mRowCache.getHitCount());
+    }
+
+    public void testUnchangedMergeKeepsCache() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        readMaxTemp(dayUri());
+        int hits = mRowCache.getHitCount();
+        TestProvider.mergeWeather(mContext,
+                new ContentValues[]{TestUtilities.createWeatherValues(mLocationRowId)});
+        readMaxTemp(dayUri());
+        assertEquals(hits + 1, mRowCache.getHitCount());
+    }
+
+    public void testLongRangesAreNotCached() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        int days = WeatherRowCache.MAX_ROWS + 1;
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestWeatherInsertThroughput.createWeatherValues(mLocationRowId, days));
+
+        int hits = mRowCache.getHitCount();
+        assertEquals(days, count(forecastUri()));
+        assertEquals(days, count(forecastUri()));
+        assertEquals(hits, mRowCache.getHitCount());
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+    A minimal HTTP server on the loopback interface that stands in for OpenWeatherMap.  Tests
+    queue up the responses it should give, or route locations to responses given every time the
+    location is asked for, and can then look at the requests it received.
+    Connections are kept alive, each one is served on its own thread until the client closes it.
+ */
+class FakeForecastServer {
+
+    static class Response {
+        final int code;
+        final byte[] body;
+        final List<String> headers = new ArrayList<String>();
+        long delayMillis;
+
+        Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        Response addHeader(String name, String value) {
+            headers.add(name + ": " + value);
+            return this;
+        }
+
+        /*
+            Holds the response back, for timeouts and cancellation.
+         */
+        Response setDelay(long delayMillis) {
+            this.delayMillis = delayMillis;
+            return this;
+        }
+    }
+
+    static class Request {
+        final String requestLine;
+        final List<String> headers = new ArrayList<String>();
+
+        Request(String requestLine) {
+            this.requestLine = requestLine;
+        }
+
+        /*
+            A query parameter of the request, like the q holding the location.
+         */
+        String getQueryParameter(String name) {
+            String[] parts = requestLine.split(" ");
+            return parts.length < 2 ? null : Uri.parse(parts[1]).getQueryParameter(name);
+        }
+
+        String getHeader(String name) {
+            for (String header : headers) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                    return header.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final LinkedList<Response> mResponses = new LinkedList<Response>();
+    private final HashMap<String, Response> mRoutes = new HashMap<String, Response>();
+    private final List<Request> mRequests = new ArrayList<Request>();
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private Response mDefaultResponse = new Response(500, new byte[0]);
+    private int mConnectionCount;
+    private final Thread mThread;
+
+    FakeForecastServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "FakeForecastServer");
+        mThread.start();
+    }
+
+    /*
+        What to pass to SunshineSyncAdapter.setForecastBaseUrl.
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    synchronized void enqueue(Response response) {
+        mResponses.add(response);
+    }
+
+    /*
+        Answers every request for the location with the response, ahead of the queue.
+     */
+    synchronized void route(String location, Response response) {
+        mRoutes.put(location, response);
+    }
+
+    /*
+        Given once the queued responses run out.
+     */
+    synchronized void setDefaultResponse(Response response) {
+        mDefaultResponse = response;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    synchronized Request getRequest(int index) {
+        return mRequests.get(index);
+    }
+
+    /*
+        The URL the client asked for, the way it would have spelled it.
+     */
+    String getUrl(Request request) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort()
+                + request.requestLine.split(" ")[1];
+    }
+
+    /*
+        How many connections were accepted, fewer than requests when they were reused.
+     */
+    synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (this) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown()
+                return;
+            }
+            synchronized (this) {
+                mConnectionCount++;
+                mSockets.add(socket);
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(
+                                new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                        while (handle(reader, socket)) {
+                            // Next request on the same connection
+                        }
+                    } catch (IOException e) {
+                        // The client went away
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Nothing left to do with it
+                        }
+                    }
+                }
+            }, "FakeForecastServer connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+        Returns false once the client has closed the connection.
+     */
+    private boolean handle(BufferedReader reader, Socket socket) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return false;
+        }
+        Request request = new Request(line);
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            request.headers.add(line);
+        }
+
+        Response response;
+        synchronized (this) {
+            mRequests.add(request);
+            response = mRoutes.get(request.getQueryParameter("q"));
+            if (response == null) {
+                response = mResponses.isEmpty() ? mDefaultResponse : mResponses.removeFirst();
+            }
+        }
+        if (response.delayMillis > 0) {
+            try {
+                Thread.sleep(response.delayMillis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.code).append(" Fake\r\n");
+        for (String header : response.headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        head.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        out.write(response.body);
+        out.flush();
+        return true;
+    }
+}
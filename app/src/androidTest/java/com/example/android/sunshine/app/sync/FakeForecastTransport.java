@@ -0,0 +1,210 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Answers forecast requests in process from recorded payloads, keyed by the location in the
+    request's q parameter, so the whole sync pipeline runs without a socket.  Locations nobody
+    recorded get OpenWeatherMap's city not found answer.  Bodies can be throttled to stand in
+    for a slow network, or stop part way until the sync is cancelled.
+ */
+class FakeForecastTransport implements ForecastTransport {
+
+    private final HashMap<String, byte[]> mPayloads = new HashMap<String, byte[]>();
+    private final List<String> mRequestedUrls = new ArrayList<String>();
+    private byte[] mNotFoundPayload;
+    private volatile boolean mCancelled;
+    private volatile int mBytesPerSecond;
+    private volatile int mBlockAfterBytes = -1;
+    private final CountDownLatch mBlocked = new CountDownLatch(1);
+    private final CountDownLatch mReleased = new CountDownLatch(1);
+
+    FakeForecastTransport() throws IOException {
+        mNotFoundPayload = TestForecastJsonParser.readFixture(TestForecastJsonParser.NOT_FOUND_FIXTURE);
+    }
+
+    synchronized FakeForecastTransport record(String location, byte[] payload) {
+        mPayloads.put(location, payload);
+        return this;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequestedUrls.size();
+    }
+
+    synchronized String getRequestedUrl(int index) {
+        return mRequestedUrls.get(index);
+    }
+
+    /*
+        0, the default, serves bodies as fast as they are read.
+     */
+    FakeForecastTransport setBytesPerSecond(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /*
+        Bodies stop after this many bytes and wait there until the sync is cancelled, which then
+        sees the read interrupted.  Lets a test cancel at a known point of the forecast.
+     */
+    FakeForecastTransport setBlockAfterBytes(int bytes) {
+        mBlockAfterBytes = bytes;
+        return this;
+    }
+
+    /*
+        @return true once a body has been read up to where it blocks
+     */
+    boolean awaitBlocked(long timeoutMillis) throws InterruptedException {
+        return mBlocked.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        byte[] payload;
+        synchronized (this) {
+            mRequestedUrls.add(url);
+            payload = mPayloads.get(Uri.parse(url).getQueryParameter("q"));
+        }
+        // OWM says 200 even for unknown cities, the payload carries the 404
+        return new RecordedResponse(payload != null ? payload : mNotFoundPayload);
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        mReleased.countDown();
+    }
+
+    private class RecordedResponse implements Response {
+        private final byte[] mPayload;
+
+        RecordedResponse(byte[] payload) {
+            mPayload = payload;
+        }
+
+        @Override
+        public int getCode() {
+            return HttpURLConnection.HTTP_OK;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if ("Content-Type".equalsIgnoreCase(name)) {
+                return "application/json; charset=utf-8";
+            }
+            return null;
+        }
+
+        @Override
+        public long getHeaderDate(String name, long defaultValue) {
+            return defaultValue;
+        }
+
+        @Override
+        public InputStream getBody() {
+            InputStream body = new ByteArrayInputStream(mPayload);
+            if (mBlockAfterBytes >= 0) {
+                body = new BlockingInputStream(body, mBlockAfterBytes);
+            }
+            return mBytesPerSecond > 0 ? new ThrottledInputStream(body, mBytesPerSecond) : body;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /*
+        Hands out the bytes before the block as fast as they are read, then waits for the
+        cancel.
+     */
+    private class BlockingInputStream extends FilterInputStream {
+        private int mRemaining;
+
+        BlockingInputStream(InputStream in, int blockAfterBytes) {
+            super(in);
+            mRemaining = blockAfterBytes;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining == 0) {
+                mBlocked.countDown();
+                try {
+                    mReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new InterruptedIOException("Download cancelled");
+            }
+            int read = super.read(buffer, offset, Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+    }
+
+    /*
+        Hands out at most a tenth of a second's worth of bytes per read, and sleeps for as long
+        as they would have taken to arrive.
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final int mBytesPerSecond;
+
+        ThrottledInputStream(InputStream in, int bytesPerSecond) {
+            super(in);
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, Math.min(count, Math.max(1, mBytesPerSecond / 10)));
+            if (read > 0) {
+                try {
+                    Thread.sleep(read * 1000L / mBytesPerSecond);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+    Writes OpenWeatherMap daily forecast responses with any number of days, for any number of
+    made up cities, along with the error and broken responses the sync has to cope with.  The
+    same seed always gives the same payload.
+ */
+class ForecastPayloadGenerator {
+
+    // Broken in the ways a response can be, see malformed()
+    static final int MALFORMED_TRUNCATED = 0;
+    static final int MALFORMED_NO_CITY = 1;
+    static final int MALFORMED_WRONG_TYPE = 2;
+    static final int MALFORMED_INCOMPLETE_DAY = 3;
+    static final int MALFORMED_NOT_JSON = 4;
+    static final int MALFORMED_KINDS = 5;
+
+    private static final long DAY_IN_SECONDS = 60 * 60 * 24;
+    private static final int[] WEATHER_IDS = {200, 300, 500, 511, 600, 701, 800, 801, 803, 804};
+    private static final String[] DESCRIPTIONS = {
+            "thunderstorm", "drizzle", "light rain", "freezing rain", "light snow", "mist",
+            "sky is clear", "few clouds", "broken clouds", "overcast clouds"
+    };
+
+    private ForecastPayloadGenerator() {
+    }
+
+    /*
+        The location setting and city name of the made up city number index.
+     */
+    static String location(int index) {
+        return String.format(Locale.US, "%05d", 10000 + index);
+    }
+
+    static String cityName(int index) {
+        return "Synthetic City " + index;
+    }
+
+    static byte[] forecast(int cityIndex, int days, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(128 + days * 260);
+        json.append("{\"city\":{\"id\":").append(cityIndex)
+                .append(",\"name\":\"").append(cityName(cityIndex)).append('"')
+                .append(",\"coord\":{\"lon\":").append(format(random.nextDouble() * 360 - 180))
+                .append(",\"lat\":").append(format(random.nextDouble() * 180 - 90))
+                .append("},\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.01,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        long dt = 1419076800;
+        for (int i = 0; i < days; i++, dt += DAY_IN_SECONDS) {
+            if (i > 0) {
+                json.append(',');
+            }
+            double min = random.nextDouble() * 30 - 10;
+            double max = min + random.nextDouble() * 12;
+            int weather = random.nextInt(WEATHER_IDS.length);
+            json.append("{\"dt\":").append(dt)
+                    .append(",\"temp\":{\"day\":").append(format((min + max) / 2))
+                    .append(",\"min\":").append(format(min))
+                    .append(",\"max\":").append(format(max))
+                    .append(",\"night\":").append(format(min))
+                    .append(",\"eve\":").append(format(max))
+                    .append(",\"morn\":").append(format(min)).append('}')
+                    .append(",\"pressure\":").append(format(990 + random.nextDouble() * 40))
+                    .append(",\"humidity\":").append(random.nextInt(101))
+                    .append(",\"weather\":[{\"id\":").append(WEATHER_IDS[weather])
+                    .append(",\"main\":\"Weather\",\"description\":\"")
+                    .append(DESCRIPTIONS[weather]).append("\",\"icon\":\"01d\"}]")
+                    .append(",\"speed\":").append(format(random.nextDouble() * 15))
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append(",\"clouds\":").append(random.nextInt(101)).append('}');
+        }
+        json.append("]}");
+        return utf8(json.toString());
+    }
+
+    /*
+        An error the way OWM sends it, with a 200 status and the code in the body.
+     */
+    static byte[] error(int cod, String message) {
+        return utf8("{\"cod\":\"" + cod + "\",\"message\":\"" + message + "\"}");
+    }
+
+    static byte[] malformed(int kind, int cityIndex, long seed) {
+        String forecast;
+        try {
+            forecast = new String(forecast(cityIndex, 14, seed), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        switch (kind) {
+            case MALFORMED_TRUNCATED:
+                return utf8(forecast.substring(0, forecast.length() / 2));
+            case MALFORMED_NO_CITY:
+                return utf8(forecast.replace("\"city\":", "\"town\":"));
+            case MALFORMED_WRONG_TYPE:
+                return utf8(forecast.replaceFirst("\"humidity\":\\d+", "\"humidity\":\"damp\""));
+            case MALFORMED_INCOMPLETE_DAY:
+                return utf8(forecast.replaceFirst(",\"weather\":\\[[^\\]]*\\]", ""));
+            case MALFORMED_NOT_JSON:
+                return utf8("<html><body>502 Bad Gateway</body></html>");
+            default:
+                throw new IllegalArgumentException("Unknown kind " + kind);
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
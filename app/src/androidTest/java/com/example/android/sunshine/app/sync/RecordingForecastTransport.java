@@ -0,0 +1,236 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Passes requests on to another transport, normally the real one, and saves every response it
+    sees as a fixture file named after the location, <q>.http.  A recording holds the status
+    code, the headers the sync looks at and the body exactly as it came over the wire, so that
+    FakeForecastServer can replay it, compressed and cacheable as it was.
+ */
+class RecordingForecastTransport implements ForecastTransport {
+
+    // The headers the sync adapter and its HTTP cache read
+    static final String[] RECORDED_HEADERS = {
+            "Content-Type", "Content-Encoding", "Cache-Control", "ETag", "Last-Modified",
+            "Expires", "Date"
+    };
+
+    static final String FIXTURE_SUFFIX = ".http";
+
+    static class Recording {
+        final int code;
+        final List<String[]> headers = new ArrayList<String[]>();
+        final byte[] body;
+
+        Recording(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        /*
+            Status line, header lines and a blank line in ISO-8859-1, then the raw body.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP ").append(code).append("\r\n");
+            for (String[] header : headers) {
+                head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            out.write(body);
+        }
+
+        static Recording read(File file) throws IOException {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            return parse(bytes);
+        }
+
+        static Recording parse(byte[] bytes) throws IOException {
+            int headEnd = -1;
+            for (int i = 0; i + 3 < bytes.length; i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n'
+                        && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    headEnd = i;
+                    break;
+                }
+            }
+            if (headEnd == -1) {
+                throw new IOException("Not a recorded response");
+            }
+            String[] lines = new String(bytes, 0, headEnd, "ISO-8859-1").split("\r\n");
+            if (!lines[0].startsWith("HTTP ")) {
+                throw new IOException("Bad status line " + lines[0]);
+            }
+            byte[] body = new byte[bytes.length - headEnd - 4];
+            System.arraycopy(bytes, headEnd + 4, body, 0, body.length);
+            Recording recording = new Recording(Integer.parseInt(lines[0].substring(5).trim()), body);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    recording.headers.add(new String[]{
+                            lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim()});
+                }
+            }
+            return recording;
+        }
+
+        /*
+            The recording as FakeForecastServer serves it.
+         */
+        FakeForecastServer.Response toServerResponse() {
+            FakeForecastServer.Response response = new FakeForecastServer.Response(code, body);
+            for (String[] header : headers) {
+                response.addHeader(header[0], header[1]);
+            }
+            return response;
+        }
+    }
+
+    private final ForecastTransport mTransport;
+    private final File mDirectory;
+    private int mRecordedCount;
+
+    RecordingForecastTransport(ForecastTransport transport, File directory) {
+        mTransport = transport;
+        mDirectory = directory;
+        mDirectory.mkdirs();
+    }
+
+    synchronized int getRecordedCount() {
+        return mRecordedCount;
+    }
+
+    static File fixtureFile(File directory, String location) {
+        return new File(directory, location.replaceAll("[^A-Za-z0-9_,.-]", "_") + FIXTURE_SUFFIX);
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        String location = Uri.parse(url).getQueryParameter("q");
+        return new RecordingResponse(mTransport.get(url, headers), fixtureFile(mDirectory, location));
+    }
+
+    @Override
+    public void cancel() {
+        mTransport.cancel();
+    }
+
+    private synchronized void save(Recording recording, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            recording.writeTo(out);
+        } finally {
+            out.close();
+        }
+        mRecordedCount++;
+    }
+
+    /*
+        Keeps a copy of the body as the sync reads it, and saves the recording once the sync
+        closes the response after reading all of it.
+     */
+    private class RecordingResponse implements Response {
+        private final Response mResponse;
+        private final File mFile;
+        private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+        private boolean mComplete;
+
+        RecordingResponse(Response response, File file) {
+            mResponse = response;
+            mFile = file;
+        }
+
+        @Override
+        public int getCode() {
+            return mResponse.getCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mResponse.getHeader(name);
+        }
+
+        @Override
+        public long getHeaderDate(String name, long defaultValue) {
+            return mResponse.getHeaderDate(name, defaultValue);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return new FilterInputStream(mResponse.getBody()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        mComplete = true;
+                    } else {
+                        mBody.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read == -1) {
+                        mComplete = true;
+                    } else {
+                        mBody.write(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // The parser can stop short of the end, the rest still belongs in the fixture
+                    byte[] buffer = new byte[4096];
+                    int read;
+                    while (!mComplete && (read = read(buffer, 0, buffer.length)) != -1) {
+                        // Copied by read
+                    }
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (mComplete || getCode() != 200) {
+                Recording recording = new Recording(getCode(), mBody.toByteArray());
+                for (String name : RECORDED_HEADERS) {
+                    String value = mResponse.getHeader(name);
+                    if (value != null) {
+                        recording.headers.add(new String[]{name, value});
+                    }
+                }
+                try {
+                    save(recording, mFile);
+                } catch (IOException e) {
+                    throw new RuntimeException("Couldn't save " + mFile, e);
+                }
+            }
+            mResponse.close();
+        }
+    }
+}
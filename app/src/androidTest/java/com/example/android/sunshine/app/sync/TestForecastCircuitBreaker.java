@@ -0,0 +1,126 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+
+/*
+    Runs the sync adapter against a fake server that keeps failing, and checks the circuit
+    breaker stops it from asking again until the backoff has passed.
+ */
+public class TestForecastCircuitBreaker extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+
+    private FakeForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        mServer = new FakeForecastServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        new ForecastCircuitBreaker(mContext).reset();
+        super.tearDown();
+    }
+
+    private SunshineSyncAdapter.LocationSyncResult syncLocation() {
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        mSyncAdapter.syncLocation(result);
+        return result;
+    }
+
+    public void testFailuresOpenBreaker() {
+        for (int i = 0; i < ForecastCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            SunshineSyncAdapter.LocationSyncResult result = syncLocation();
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, result.status);
+        }
+        assertEquals(ForecastCircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+
+        // Open now, so the next sync shouldn't reach the server at all
+        SunshineSyncAdapter.LocationSyncResult result = syncLocation();
+        assertFalse(result.hasStatus);
+        assertEquals(ForecastCircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+
+        ForecastCircuitBreaker breaker = new ForecastCircuitBreaker(mContext);
+        assertEquals(ForecastCircuitBreaker.STATE_OPEN, breaker.getState());
+        long backoff = breaker.getRetryTime() - System.currentTimeMillis();
+        assertTrue("Error: backoff of " + backoff + "ms is outside its jitter",
+                backoff > 0 && backoff <= ForecastCircuitBreaker.BASE_BACKOFF_MILLIS);
+    }
+
+    public void testClientErrorsDontOpenBreaker() {
+        // What OpenWeatherMap answers for a bad key
+        mServer.setDefaultResponse(new FakeForecastServer.Response(401, new byte[0]));
+        for (int i = 0; i < ForecastCircuitBreaker.FAILURE_THRESHOLD + 1; i++) {
+            SunshineSyncAdapter.LocationSyncResult result = syncLocation();
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID, result.status);
+        }
+        assertEquals(ForecastCircuitBreaker.FAILURE_THRESHOLD + 1, mServer.getRequestCount());
+
+        ForecastCircuitBreaker breaker = new ForecastCircuitBreaker(mContext);
+        assertEquals(ForecastCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    public void testManualSyncProbesOpenBreaker() {
+        for (int i = 0; i < ForecastCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            syncLocation();
+        }
+        int requestCount = mServer.getRequestCount();
+
+        Bundle extras = new Bundle();
+        extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        SyncResult syncResult = new SyncResult();
+        mSyncAdapter.onPerformSync(null, extras, mContext.getString(R.string.content_authority),
+                null, syncResult);
+
+        // The refresh went out as the probe, and failing it reopened the breaker
+        assertEquals(requestCount + 1, mServer.getRequestCount());
+        assertEquals(ForecastCircuitBreaker.STATE_OPEN,
+                new ForecastCircuitBreaker(mContext).getState());
+        assertTrue("Error: the framework wasn't asked to hold off",
+                syncResult.delayUntil > System.currentTimeMillis() / 1000);
+    }
+
+    public void testHalfOpenProbe() throws InterruptedException {
+        ForecastCircuitBreaker breaker = new ForecastCircuitBreaker(mContext, 50, 1000);
+        for (int i = 0; i < ForecastCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.isOpen());
+
+        Thread.sleep(60);
+        // Only one probe at a time
+        assertTrue(breaker.allowRequest());
+        assertEquals(ForecastCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // A failed probe reopens it with a longer backoff
+        breaker.onFailure();
+        assertEquals(ForecastCircuitBreaker.STATE_OPEN, breaker.getState());
+        long backoff = breaker.getRetryTime() - System.currentTimeMillis();
+        assertTrue("Error: backoff of " + backoff + "ms didn't grow", backoff > 25 && backoff <= 100);
+
+        Thread.sleep(110);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(ForecastCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(2, breaker.getOpenedCount());
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Serves the recorded forecast compressed from a stand-in server and checks the sync adapter
+    asks for compression, stores the same rows as from the plain response, and counts the bytes
+    on both sides.  The benchmark compares what compression saves in bytes with what it costs in
+    CPU.
+ */
+public class TestForecastCompression extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastCompression.class.getSimpleName();
+
+    private static final String LOCATION = "94043";
+    private static final int BENCHMARK_ROUNDS = 20;
+    // How many 14 day forecasts make up the multi-city payload
+    private static final int CITY_COUNT = 10;
+
+    private FakeForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        mServer = new FakeForecastServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new DeflaterOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /*
+        Deflate without zlib's header and checksum, as some servers send it.
+     */
+    static byte[] rawDeflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        OutputStream out = new DeflaterOutputStream(bytes, deflater);
+        out.write(data);
+        out.close();
+        deflater.end();
+        return bytes.toByteArray();
+    }
+
+    private void syncCompressed(String encoding, byte[] compressed) throws IOException {
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, compressed)
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .addHeader("Content-Encoding", encoding));
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        mSyncAdapter.syncLocation(result);
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(14, result.rowCount);
+        String acceptEncoding = mServer.getRequest(0).getHeader("Accept-Encoding");
+        assertNotNull("Error: the request didn't ask for compression", acceptEncoding);
+        assertTrue(acceptEncoding.contains(encoding));
+
+        assertEquals(compressed.length,
+                result.trace.getBytes(WeatherContract.SyncStatsEntry.STAGE_DOWNLOAD));
+        assertEquals(fixture.length,
+                result.trace.getBytes(WeatherContract.SyncStatsEntry.STAGE_DECOMPRESS));
+    }
+
+    public void testGzipResponse() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        syncCompressed("gzip", gzip(fixture));
+    }
+
+    public void testDeflateResponse() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        syncCompressed("deflate", deflate(fixture));
+    }
+
+    public void testRawDeflateResponse() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        syncCompressed("deflate", rawDeflate(fixture));
+    }
+
+    public void testUncompressedResponse() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture));
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        mSyncAdapter.syncLocation(result);
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(fixture.length,
+                result.trace.getBytes(WeatherContract.SyncStatsEntry.STAGE_DOWNLOAD));
+        assertEquals(fixture.length,
+                result.trace.getBytes(WeatherContract.SyncStatsEntry.STAGE_DECOMPRESS));
+    }
+
+    /*
+        CPU time of decoding and parsing the payload BENCHMARK_ROUNDS times.
+     */
+    private static long parseCpuNanos(byte[] payload, String encoding, int payloadCount)
+            throws Exception {
+        long start = Debug.threadCpuTimeNanos();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            for (int j = 0; j < payloadCount; j++) {
+                InputStream in = SunshineSyncAdapter.decodeContent(
+                        new ByteArrayInputStream(payload), encoding);
+                new ForecastJsonParser().parse(new InputStreamReader(in, "UTF-8"),
+                        new TestForecastJsonParser.CollectingCallback());
+            }
+        }
+        return Debug.threadCpuTimeNanos() - start;
+    }
+
+    /*
+        How much each encoding saves on the wire against what decoding it costs.
+     */
+    public void testBenchmarkCompression() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        String[] names = {"14 days", CITY_COUNT + " cities"};
+        int[] payloadCounts = {1, CITY_COUNT};
+
+        for (int i = 0; i < names.length; i++) {
+            int count = payloadCounts[i];
+            byte[] gzipped = gzip(fixture);
+            byte[] deflated = deflate(fixture);
+
+            long plainNanos = parseCpuNanos(fixture, null, count);
+            long gzipNanos = parseCpuNanos(gzipped, "gzip", count);
+            long deflateNanos = parseCpuNanos(deflated, "deflate", count);
+
+            Log.i(LOG_TAG, String.format("%s: identity %d bytes %d us, gzip %d bytes %d us, " +
+                            "deflate %d bytes %d us (CPU per round)",
+                    names[i],
+                    fixture.length * count, plainNanos / BENCHMARK_ROUNDS / 1000,
+                    gzipped.length * count, gzipNanos / BENCHMARK_ROUNDS / 1000,
+                    deflated.length * count, deflateNanos / BENCHMARK_ROUNDS / 1000));
+            assertTrue(gzipped.length < fixture.length);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that consumers run in parallel on the same snapshot, that publish doesn't return while
+    they still run, so they don't outlive the sync's wakelock, that a stuck consumer is given up
+    on after the timeout, and that each consumer's latency is recorded under its own stage.
+ */
+public class TestForecastFanOut extends AndroidTestCase {
+
+    private static final String SLOW_STAGE = "test_slow_consumer";
+    private static final String FAST_STAGE = "test_fast_consumer";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(SyncStatsEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(SyncStatsEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private static ForecastSnapshot newSnapshot() {
+        return new ForecastSnapshot("94043", 1419033600L, 321, 75, 65, "Asteroids");
+    }
+
+    public void testConsumersShareSnapshotAndRunInParallel() {
+        final ForecastSnapshot snapshot = newSnapshot();
+        final CountDownLatch fastDone = new CountDownLatch(2);
+        final AtomicInteger sameSnapshot = new AtomicInteger();
+        final AtomicBoolean slowSawFast = new AtomicBoolean();
+        final AtomicBoolean slowDone = new AtomicBoolean();
+
+        ForecastFanOut.Consumer fast = new ForecastFanOut.Consumer() {
+            @Override
+            public void onForecast(ForecastSnapshot received) {
+                if (received == snapshot) {
+                    sameSnapshot.incrementAndGet();
+                }
+                fastDone.countDown();
+            }
+        };
+        ForecastFanOut fanOut = new ForecastFanOut(mContext)
+                .add(SLOW_STAGE, new ForecastFanOut.Consumer() {
+                    @Override
+                    public void onForecast(ForecastSnapshot received) {
+                        if (received == snapshot) {
+                            sameSnapshot.incrementAndGet();
+                        }
+                        // Only returns once the others ran alongside it
+                        try {
+                            slowSawFast.set(fastDone.await(5, TimeUnit.SECONDS));
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        slowDone.set(true);
+                    }
+                })
+                .add(FAST_STAGE, fast)
+                .add(FAST_STAGE, fast);
+
+        fanOut.publish(snapshot);
+        assertTrue("Error: publish returned before its consumers were done", slowDone.get());
+        assertTrue("Error: the consumers didn't run in parallel", slowSawFast.get());
+        assertEquals(3, sameSnapshot.get());
+
+        Cursor cursor = mContext.getContentResolver().query(SyncStatsEntry.CONTENT_URI,
+                null, null, null, null);
+        int slowSamples = 0;
+        int fastSamples = 0;
+        while (cursor.moveToNext()) {
+            String stage = cursor.getString(cursor.getColumnIndex(SyncStatsEntry.COLUMN_STAGE));
+            int samples = cursor.getInt(cursor.getColumnIndex(SyncStatsEntry.COLUMN_SAMPLES));
+            if (SLOW_STAGE.equals(stage)) {
+                slowSamples = samples;
+            } else if (FAST_STAGE.equals(stage)) {
+                fastSamples = samples;
+            }
+        }
+        cursor.close();
+        assertEquals(1, slowSamples);
+        assertEquals(2, fastSamples);
+    }
+
+    /*
+        A consumer that never returns on its own is interrupted once the timeout passes, and
+        publish doesn't wait for it any longer than that.
+     */
+    public void testStuckConsumerIsInterrupted() throws InterruptedException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        ForecastFanOut fanOut = new ForecastFanOut(mContext, 200)
+                .add(SLOW_STAGE, new ForecastFanOut.Consumer() {
+                    @Override
+                    public void onForecast(ForecastSnapshot received) {
+                        try {
+                            new CountDownLatch(1).await();
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                    }
+                });
+
+        long start = System.nanoTime();
+        fanOut.publish(newSnapshot());
+        long publishMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Error: publish took " + publishMillis + "ms with a 200ms timeout",
+                publishMillis >= 200 && publishMillis < 1000);
+        assertTrue("Error: the stuck consumer was left running",
+                interrupted.await(1, TimeUnit.SECONDS));
+    }
+}
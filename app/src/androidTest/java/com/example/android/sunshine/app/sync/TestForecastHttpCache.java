@@ -0,0 +1,165 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/*
+    Syncs against a stand-in server whose responses can be cached, and checks that a forecast
+    rebuilt from a body downloaded on an earlier day keeps its dates, that cache hits still
+    delete the days gone by, that the API key isn't written to disk, and that the provider reports
+    the cache's counters.
+ */
+public class TestForecastHttpCache extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private FakeForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+    private ForecastHttpCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastCircuitBreaker(mContext).reset();
+        mCache = new ForecastHttpCache(mContext);
+        mCache.clear();
+        mServer = new FakeForecastServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mCache.clear();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private SunshineSyncAdapter.LocationSyncResult sync() {
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        mSyncAdapter.syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        return result;
+    }
+
+    private double getMaxTemp(long date) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION, date),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertTrue("Error: no weather stored for " + date, cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(0);
+        cursor.close();
+        return maxTemp;
+    }
+
+    private Bundle getStats() {
+        return mContext.getContentResolver().call(WeatherContract.SyncStatsEntry.CONTENT_URI,
+                WeatherContract.SyncStatsEntry.METHOD_HTTP_CACHE_STATS, null, null);
+    }
+
+    /*
+        The body's first day is the day it was downloaded on, not the day it gets parsed.
+     */
+    public void testRebuildFromEarlierDay() throws IOException {
+        // ContentResolver.call was added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture)
+                .addHeader("Cache-Control", "max-age=3600")
+                .addHeader("ETag", "\"v1\""));
+        sync();
+        long now = System.currentTimeMillis();
+        double secondDayMaxTemp = getMaxTemp(now + DAY_IN_MILLIS);
+
+        // As if the body had been downloaded yesterday and the rows were lost since
+        ForecastHttpCache.Entry entry = mCache.get(mServer.getUrl(mServer.getRequest(0)));
+        assertNotNull("Error: the response wasn't cached", entry);
+        mCache.setFetchDay(entry, entry.getFetchDay() - 1);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        SunshineSyncAdapter.LocationSyncResult result = sync();
+        assertEquals("Error: a fresh response should be used without asking the server",
+                1, mServer.getRequestCount());
+        assertEquals("Error: the rebuilt forecast is dated from the wrong day",
+                secondDayMaxTemp, getMaxTemp(now));
+        assertTrue(result.lastDayToDelete > 0);
+
+        Bundle stats = getStats();
+        assertEquals(1, stats.getLong(WeatherContract.SyncStatsEntry.EXTRA_CACHE_HITS));
+        assertEquals(1, stats.getLong(WeatherContract.SyncStatsEntry.EXTRA_CACHE_MISSES));
+        assertEquals(mCache.getHitCount(),
+                stats.getLong(WeatherContract.SyncStatsEntry.EXTRA_CACHE_HITS));
+    }
+
+    /*
+        A 304 writes no rows, but the sync still deletes the days that have gone by.
+     */
+    public void testNotModifiedDeletesHistory() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture)
+                .addHeader("ETag", "\"v1\""));
+        mServer.enqueue(new FakeForecastServer.Response(304, new byte[0]));
+        sync();
+
+        SunshineSyncAdapter.LocationSyncResult result = sync();
+        assertEquals("\"v1\"", mServer.getRequest(1).getHeader("If-None-Match"));
+        assertEquals(0, result.rowCount);
+        assertTrue("Error: a 304 should still delete old weather", result.lastDayToDelete > 0);
+        assertEquals(1, getStats().getLong(WeatherContract.SyncStatsEntry.EXTRA_CACHE_NOT_MODIFIED));
+    }
+
+    /*
+        The stored entry doesn't give away the API key, and is still found for the request.
+     */
+    public void testApiKeyNotStored() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        assertEquals("http://example.com/daily?q=94043&cnt=14",
+                ForecastHttpCache.withoutApiKey("http://example.com/daily?q=94043&APPID=abc&cnt=14"));
+        assertEquals("http://example.com/daily?q=94043",
+                ForecastHttpCache.withoutApiKey("http://example.com/daily?q=94043&APPID=abc"));
+
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture)
+                .addHeader("ETag", "\"v1\""));
+        sync();
+        assertNotNull("Error: the response wasn't cached",
+                mCache.get(mServer.getUrl(mServer.getRequest(0))));
+
+        File[] files = new File(mContext.getCacheDir(), ForecastHttpCache.CACHE_DIR).listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".meta")) {
+                Properties meta = new Properties();
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    meta.load(in);
+                } finally {
+                    in.close();
+                }
+                assertFalse("Error: the API key was written to " + file.getName(),
+                        meta.toString().contains("APPID"));
+            }
+        }
+    }
+}
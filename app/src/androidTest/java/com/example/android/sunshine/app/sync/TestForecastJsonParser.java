@@ -0,0 +1,252 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+
+/*
+    Checks that the streaming parser pulls the same values out of a recorded OWM response as the
+    org.json based parsing the sync adapter has always done, and compares the cost of both.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    static final String FORECAST_FIXTURE = "forecast_14day.json";
+    static final String NOT_FOUND_FIXTURE = "forecast_not_found.json";
+
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    static byte[] readFixture(String name) throws IOException {
+        InputStream in = TestForecastJsonParser.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull("Error: fixture " + name + " is not packaged with the tests", in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+        Builds a bigger payload by repeating the recorded days, the way a larger cnt would.
+     */
+    static byte[] repeatDays(byte[] fixture, int times) throws Exception {
+        JSONObject forecast = new JSONObject(new String(fixture, "UTF-8"));
+        JSONArray days = forecast.getJSONArray("list");
+        JSONArray repeated = new JSONArray();
+        for (int i = 0; i < times; i++) {
+            for (int j = 0; j < days.length(); j++) {
+                repeated.put(days.get(j));
+            }
+        }
+        forecast.put("list", repeated);
+        forecast.put("cnt", repeated.length());
+        return forecast.toString().getBytes("UTF-8");
+    }
+
+    static class CollectingCallback implements ForecastJsonParser.Callback {
+        String cityName;
+        double lat;
+        double lon;
+        final ArrayList<double[]> days = new ArrayList<double[]>();
+        final ArrayList<String> descriptions = new ArrayList<String>();
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, ForecastJsonParser.DayForecast day) {
+            assertEquals("Error: days were not handed out in order", days.size(), dayIndex);
+            days.add(new double[]{day.pressure, day.humidity, day.windSpeed, day.windDirection,
+                    day.high, day.low, day.weatherId});
+            descriptions.add(day.description);
+        }
+    }
+
+    /*
+        The way SunshineSyncAdapter.getWeatherDataFromJson reads the response.
+     */
+    static CollectingCallback parseWithJsonObject(InputStream in) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+
+        CollectingCallback result = new CollectingCallback();
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        result.onCity(cityJson.getString("name"),
+                cityCoord.getDouble("lat"), cityCoord.getDouble("lon"));
+
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        ForecastJsonParser.DayForecast day = new ForecastJsonParser.DayForecast();
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            day.pressure = dayForecast.getDouble("pressure");
+            day.humidity = dayForecast.getInt("humidity");
+            day.windSpeed = dayForecast.getDouble("speed");
+            day.windDirection = dayForecast.getDouble("deg");
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            day.description = weatherObject.getString("main");
+            day.weatherId = weatherObject.getInt("id");
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+            day.high = temperatureObject.getDouble("max");
+            day.low = temperatureObject.getDouble("min");
+            result.onDay(i, day);
+        }
+        return result;
+    }
+
+    // What the sync hands the parser, the response decoded as UTF-8
+    static Reader utf8(byte[] bytes) throws IOException {
+        return new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8");
+    }
+
+    public void testMatchesJsonObjectParsing() throws Exception {
+        byte[] fixture = readFixture(FORECAST_FIXTURE);
+
+        CollectingCallback expected = parseWithJsonObject(new ByteArrayInputStream(fixture));
+        CollectingCallback actual = new CollectingCallback();
+        int code = new ForecastJsonParser().parse(utf8(fixture), actual);
+
+        assertEquals(HttpURLConnection.HTTP_OK, code);
+        assertEquals(expected.cityName, actual.cityName);
+        assertEquals(expected.lat, actual.lat);
+        assertEquals(expected.lon, actual.lon);
+        assertEquals("Error: streaming parser found a different number of days",
+                14, actual.days.size());
+        for (int i = 0; i < expected.days.size(); i++) {
+            for (int j = 0; j < expected.days.get(i).length; j++) {
+                assertEquals("Error: value " + j + " of day " + i + " differs",
+                        expected.days.get(i)[j], actual.days.get(i)[j]);
+            }
+            assertEquals(expected.descriptions.get(i), actual.descriptions.get(i));
+        }
+    }
+
+    public void testErrorCodeStopsParsing() throws Exception {
+        CollectingCallback callback = new CollectingCallback();
+        int code = new ForecastJsonParser().parse(
+                utf8(readFixture(NOT_FOUND_FIXTURE)), callback);
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, code);
+        assertNull(callback.cityName);
+        assertTrue(callback.days.isEmpty());
+    }
+
+    public void testMalformedResponse() throws Exception {
+        byte[] fixture = readFixture(FORECAST_FIXTURE);
+        byte[] truncated = new byte[fixture.length / 2];
+        System.arraycopy(fixture, 0, truncated, 0, truncated.length);
+
+        try {
+            new ForecastJsonParser().parse(utf8(truncated),
+                    new CollectingCallback());
+            fail("Error: a truncated response should not parse");
+        } catch (JSONException | IOException expected) {
+            // A truncated stream surfaces as an EOF from the reader
+        }
+
+        try {
+            new ForecastJsonParser().parse(
+                    utf8("{\"cod\":\"200\",\"list\":{}}".getBytes("UTF-8")),
+                    new CollectingCallback());
+            fail("Error: a list that is not an array should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    /*
+        A day without its humidity or weather id is rejected, like JSONObject parsing does,
+        rather than stored with 0 for it.
+     */
+    public void testIncompleteDay() throws Exception {
+        byte[] fixture = readFixture(FORECAST_FIXTURE);
+        for (String[] field : new String[][]{{null, "humidity"}, {"weather", "id"}}) {
+            JSONObject forecast = new JSONObject(new String(fixture, "UTF-8"));
+            JSONObject day = forecast.getJSONArray("list").getJSONObject(3);
+            if (field[0] == null) {
+                day.remove(field[1]);
+            } else {
+                day.getJSONArray(field[0]).getJSONObject(0).remove(field[1]);
+            }
+            try {
+                new ForecastJsonParser().parse(
+                        utf8(forecast.toString().getBytes("UTF-8")),
+                        new CollectingCallback());
+                fail("Error: a day without " + field[1] + " should not parse");
+            } catch (JSONException expected) {
+            }
+        }
+    }
+
+    /*
+        Logs time and allocations for both parsers on the recorded payload and on payloads that
+        are 10 and 100 times bigger.
+     */
+    @SuppressWarnings("deprecation")
+    public void testBenchmarkAgainstJsonObject() throws Exception {
+        byte[] fixture = readFixture(FORECAST_FIXTURE);
+        int[] sizes = {1, 10, 100};
+        for (int size : sizes) {
+            byte[] payload = size == 1 ? fixture : repeatDays(fixture, size);
+
+            // Warm up both code paths before measuring
+            parseWithJsonObject(new ByteArrayInputStream(payload));
+            new ForecastJsonParser().parse(utf8(payload),
+                    new CollectingCallback());
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                parseWithJsonObject(new ByteArrayInputStream(payload));
+            }
+            long jsonObjectNanos = System.nanoTime() - start;
+            long jsonObjectBytes = Debug.getThreadAllocSize();
+
+            Debug.resetThreadAllocSize();
+            start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                new ForecastJsonParser().parse(utf8(payload),
+                        new CollectingCallback());
+            }
+            long streamingNanos = System.nanoTime() - start;
+            long streamingBytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            Log.i(LOG_TAG, String.format("%d days (%d bytes): JSONObject %d us / %d bytes, " +
+                            "streaming %d us / %d bytes per parse",
+                    14 * size, payload.length,
+                    jsonObjectNanos / BENCHMARK_ROUNDS / 1000, jsonObjectBytes / BENCHMARK_ROUNDS,
+                    streamingNanos / BENCHMARK_ROUNDS / 1000, streamingBytes / BENCHMARK_ROUNDS));
+        }
+    }
+}
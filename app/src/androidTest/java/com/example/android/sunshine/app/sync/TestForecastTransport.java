@@ -0,0 +1,211 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.LocationIdCache;
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+
+/*
+    Checks HttpForecastTransport against the stand-in server: connections are reused between
+    requests, a stalled response times out, and cancel() frees a thread waiting on the network.
+    The fake transport then runs the sync pipeline offline, which the benchmark times without the
+    network in the way.
+ */
+public class TestForecastTransport extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastTransport.class.getSimpleName();
+
+    private static final String LOCATION = "94043";
+    private static final int BENCHMARK_ROUNDS = 50;
+
+    private FakeForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        mServer = new FakeForecastServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private static void readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) != -1) {
+            // Drained so the connection can go back to the pool
+        }
+    }
+
+    public void testConnectionReused() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture));
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture));
+
+        HttpForecastTransport transport = new HttpForecastTransport();
+        for (int i = 0; i < 2; i++) {
+            ForecastTransport.Response response =
+                    transport.get(mServer.getBaseUrl() + "q=" + LOCATION, new HashMap<String, String>());
+            assertEquals(200, response.getCode());
+            readFully(response.getBody());
+            response.close();
+        }
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("Error: the second request didn't reuse the connection",
+                1, mServer.getConnectionCount());
+    }
+
+    public void testReadTimeout() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        mServer.enqueue(new FakeForecastServer.Response(200, new byte[0]).setDelay(5000));
+
+        HttpForecastTransport transport = new HttpForecastTransport(1000, 200);
+        long start = System.nanoTime();
+        try {
+            transport.get(mServer.getBaseUrl(), new HashMap<String, String>()).close();
+            fail("Error: a stalled response should have timed out");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Error: timing out took " + elapsedMillis + " ms", elapsedMillis < 2000);
+    }
+
+    public void testCancelUnblocksRequest() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        mServer.enqueue(new FakeForecastServer.Response(200, new byte[0]).setDelay(10000));
+
+        final HttpForecastTransport transport = new HttpForecastTransport();
+        final IOException[] failure = new IOException[1];
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.get(mServer.getBaseUrl(), new HashMap<String, String>()).close();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        syncThread.start();
+
+        // Let the request reach the server before cancelling it
+        while (mServer.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        long start = System.nanoTime();
+        transport.cancel();
+        syncThread.join(5000);
+        long cancelMillis = (System.nanoTime() - start) / 1000000;
+
+        assertFalse("Error: cancel() didn't unblock the request", syncThread.isAlive());
+        assertNotNull("Error: a cancelled request should fail", failure[0]);
+        Log.i(LOG_TAG, "Cancelled a request in flight in " + cancelMillis + " ms");
+    }
+
+    public void testSyncOverFakeTransport() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        FakeForecastTransport transport = new FakeForecastTransport().record(LOCATION, fixture);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setTransport(transport);
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        syncAdapter.syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(14, result.rowCount);
+
+        result = new SunshineSyncAdapter.LocationSyncResult("nowhere");
+        syncAdapter.syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID, result.status);
+
+        assertEquals(2, transport.getRequestCount());
+        assertEquals(0, mServer.getRequestCount());
+
+        syncAdapter.onSyncCanceled();
+        assertTrue(transport.isCancelled());
+    }
+
+    /*
+        Once a location has been synced, syncing it again finds its id in LocationIdCache
+        instead of looking the location up.
+     */
+    public void testResyncUsesCachedLocationId() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setTransport(new FakeForecastTransport().record(LOCATION, fixture));
+        syncAdapter.syncLocation(new SunshineSyncAdapter.LocationSyncResult(LOCATION));
+
+        new ForecastHttpCache(mContext).clear();
+        LocationIdCache cache = LocationIdCache.getInstance();
+        int hits = cache.getHitCount();
+        int misses = cache.getMissCount();
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        syncAdapter.syncLocation(result);
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals("Error: the second sync looked the location up again",
+                misses, cache.getMissCount());
+    }
+
+    /*
+        Logs the time per sync from the stand-in server.  The HTTP cache is cleared every round
+        so each sync downloads, parses and stores the forecast.
+     */
+    public void testBenchmarkOfflineSync() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setTransport(new FakeForecastTransport().record(LOCATION, fixture));
+        ForecastHttpCache cache = new ForecastHttpCache(mContext);
+
+        long totalNanos = 0;
+        long fetchNanos = 0;
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            cache.clear();
+            SunshineSyncAdapter.LocationSyncResult result =
+                    new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+            long start = System.nanoTime();
+            syncAdapter.syncLocation(result);
+            totalNanos += System.nanoTime() - start;
+            fetchNanos += result.trace.getNanos(WeatherContract.SyncStatsEntry.STAGE_CONNECT)
+                    + result.trace.getNanos(WeatherContract.SyncStatsEntry.STAGE_DOWNLOAD);
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        }
+
+        Log.i(LOG_TAG, String.format("Offline sync of %d days: %d us per sync, %d us of it fetching",
+                14, totalNanos / BENCHMARK_ROUNDS / 1000, fetchNanos / BENCHMARK_ROUNDS / 1000));
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Syncs the preferred location along with tracked ones from a fake transport, and checks that
+    they are fetched side by side, that each location's row gets its own sync status and time
+    of the last good sync, and that a tracked location has no coordinates until its first sync.
+ */
+public class TestLocationSync extends AndroidTestCase {
+
+    private static final String UNKNOWN_LOCATION = "99999";
+    private static final int DAYS = 14;
+    // A forecast takes about this long to download, so fetching three of them one after the
+    // other would take three times as long
+    private static final long DOWNLOAD_MILLIS = 1000;
+
+    private static final String[] LOCATION_PROJECTION = {
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_SYNC_STATUS,
+            WeatherContract.LocationEntry.COLUMN_LAST_SYNC
+    };
+    private static final int COL_CITY_NAME = 0;
+    private static final int COL_COORD_LAT = 1;
+    private static final int COL_COORD_LONG = 2;
+    private static final int COL_SYNC_STATUS = 3;
+    private static final int COL_LAST_SYNC = 4;
+
+    private FakeForecastTransport mTransport;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        mTransport = new FakeForecastTransport();
+        for (int i = 0; i < 3; i++) {
+            mTransport.record(ForecastPayloadGenerator.location(i),
+                    ForecastPayloadGenerator.forecast(i, DAYS, i));
+        }
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setTransport(mTransport);
+        // Nothing outside the provider should hear about these forecasts
+        mSyncAdapter.setFanOut(new ForecastFanOut(mContext));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new ForecastHttpCache(mContext).clear();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private Cursor queryLocation(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, LOCATION_PROJECTION,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting}, null);
+        assertTrue("Error: no row for location " + locationSetting, cursor.moveToFirst());
+        return cursor;
+    }
+
+    private int countWeatherRows(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testTrackedLocationHasNoCoordinates() {
+        String location = ForecastPayloadGenerator.location(1);
+        SunshineSyncAdapter.trackLocation(mContext, location);
+
+        assertTrue(SunshineSyncAdapter.getTrackedLocations(mContext).contains(location));
+        Cursor cursor = queryLocation(location);
+        assertTrue("Error: a location that was never synced has coordinates",
+                cursor.isNull(COL_COORD_LAT));
+        assertTrue(cursor.isNull(COL_COORD_LONG));
+        assertTrue(cursor.isNull(COL_SYNC_STATUS));
+        cursor.close();
+    }
+
+    /*
+        The preferred location and two tracked ones, one of which the server doesn't know.  Each
+        ends up with the status of its own sync.
+     */
+    public void testParallelSyncStoresStatusPerLocation() {
+        // applyBatch and ContentResolver.call were added in API level 11
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        String preferred = ForecastPayloadGenerator.location(0);
+        String tracked = ForecastPayloadGenerator.location(1);
+        SunshineSyncAdapter.trackLocation(mContext, tracked);
+        SunshineSyncAdapter.trackLocation(mContext, ForecastPayloadGenerator.location(2));
+        SunshineSyncAdapter.trackLocation(mContext, UNKNOWN_LOCATION);
+        int payloadBytes = ForecastPayloadGenerator.forecast(0, DAYS, 0).length;
+        mTransport.setBytesPerSecond((int) (payloadBytes * 1000L / DOWNLOAD_MILLIS));
+
+        long start = System.currentTimeMillis();
+        SyncResult syncResult = new SyncResult();
+        mSyncAdapter.syncLocations(preferred, syncResult);
+        long syncMillis = System.currentTimeMillis() - start;
+
+        assertEquals(4, mTransport.getRequestCount());
+        assertTrue("Error: the locations took " + syncMillis + " ms, as if fetched one by one",
+                syncMillis < DOWNLOAD_MILLIS * 2);
+        assertEquals(DAYS * 3, syncResult.stats.numEntries);
+
+        for (int i = 0; i < 3; i++) {
+            String location = ForecastPayloadGenerator.location(i);
+            Cursor cursor = queryLocation(location);
+            assertEquals(ForecastPayloadGenerator.cityName(i), cursor.getString(COL_CITY_NAME));
+            assertFalse("Error: the sync didn't fill in the coordinates of " + location,
+                    cursor.isNull(COL_COORD_LAT));
+            assertFalse(cursor.isNull(COL_COORD_LONG));
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, cursor.getInt(COL_SYNC_STATUS));
+            assertTrue("Error: the time of " + location + "'s sync wasn't stored",
+                    cursor.getLong(COL_LAST_SYNC) >= start);
+            cursor.close();
+            assertEquals(DAYS, countWeatherRows(location));
+        }
+
+        Cursor cursor = queryLocation(UNKNOWN_LOCATION);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID, cursor.getInt(COL_SYNC_STATUS));
+        assertTrue("Error: a failed sync shouldn't count as the last one",
+                cursor.isNull(COL_LAST_SYNC));
+        assertTrue("Error: a location the server doesn't know got coordinates",
+                cursor.isNull(COL_COORD_LAT));
+        assertEquals(UNKNOWN_LOCATION, cursor.getString(COL_CITY_NAME));
+        cursor.close();
+        assertEquals(0, countWeatherRows(UNKNOWN_LOCATION));
+    }
+
+    /*
+        Tracking a location that was already synced keeps what the sync stored.
+     */
+    public void testTrackingSyncedLocationKeepsCoordinates() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        String location = ForecastPayloadGenerator.location(0);
+        mSyncAdapter.syncLocations(location, new SyncResult());
+        SunshineSyncAdapter.trackLocation(mContext, location);
+
+        Cursor cursor = queryLocation(location);
+        assertEquals(ForecastPayloadGenerator.cityName(0), cursor.getString(COL_CITY_NAME));
+        assertFalse(cursor.isNull(COL_COORD_LAT));
+        cursor.close();
+    }
+}
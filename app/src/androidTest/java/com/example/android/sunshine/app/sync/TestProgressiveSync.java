@@ -0,0 +1,163 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.IOException;
+
+/*
+    Syncs a location that has no forecast yet over a throttled fake network, once committing
+    everything at the end and once progressively, and compares how long the list and the Today
+    widget wait for today's forecast.  They watch the same weather URI, which is what the
+    observer here stands in for.
+ */
+public class TestProgressiveSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestProgressiveSync.class.getSimpleName();
+
+    private static final String LOCATION = "94043";
+    // Slow enough that the 14 day response takes a couple of seconds to come in
+    private static final int BYTES_PER_SECOND = 2500;
+
+    private HandlerThread mObserverThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        mObserverThread = new HandlerThread("TestProgressiveSync");
+        mObserverThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mObserverThread.quit();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private static long today() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        return WeatherContract.normalizeDate(dayTime.setJulianDay(julianDay));
+    }
+
+    /*
+        Notes when today's row first becomes readable.
+     */
+    private class FirstForecastObserver extends ContentObserver {
+        private final long mStartNanos = System.nanoTime();
+        volatile long firstForecastNanos = -1;
+
+        FirstForecastObserver() {
+            super(new Handler(mObserverThread.getLooper()));
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (firstForecastNanos != -1) {
+                return;
+            }
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION, today()),
+                    new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null, null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    firstForecastNanos = System.nanoTime() - mStartNanos;
+                }
+                cursor.close();
+            }
+        }
+    }
+
+    /*
+        @return milliseconds from the start of the sync until today's row could be read
+     */
+    private long syncAndTimeFirstForecast(boolean progressive, long[] syncMillis)
+            throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastHttpCache(mContext).clear();
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setTransport(new FakeForecastTransport()
+                .record(LOCATION, fixture)
+                .setBytesPerSecond(BYTES_PER_SECOND));
+        syncAdapter.setProgressive(progressive);
+
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION);
+        FirstForecastObserver observer = new FirstForecastObserver();
+        mContext.getContentResolver().registerContentObserver(weatherUri, true, observer);
+        try {
+            SunshineSyncAdapter.LocationSyncResult result =
+                    new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+            long start = System.nanoTime();
+            syncAdapter.syncLocation(result);
+            syncMillis[0] = (System.nanoTime() - start) / 1000000;
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+            assertEquals(14, result.rowCount);
+            assertEquals(progressive,
+                    result.trace.getNanos(WeatherContract.SyncStatsEntry.STAGE_FIRST_FORECAST) > 0);
+
+            // Let the observer catch up with the last notifications
+            long deadline = System.currentTimeMillis() + 2000;
+            while (observer.firstForecastNanos == -1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        assertTrue("Error: today's forecast never showed up", observer.firstForecastNanos != -1);
+        return observer.firstForecastNanos / 1000000;
+    }
+
+    public void testTimeToFirstForecast() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        long[] syncMillis = new long[1];
+        long allAtOnceMillis = syncAndTimeFirstForecast(false, syncMillis);
+        long allAtOnceSyncMillis = syncMillis[0];
+        long progressiveMillis = syncAndTimeFirstForecast(true, syncMillis);
+        long progressiveSyncMillis = syncMillis[0];
+
+        Log.i(LOG_TAG, String.format("Today's forecast after %d ms of a %d ms sync, " +
+                        "progressively after %d ms of a %d ms sync",
+                allAtOnceMillis, allAtOnceSyncMillis, progressiveMillis, progressiveSyncMillis));
+        assertTrue("Error: committing today first didn't show it any sooner",
+                progressiveMillis < allAtOnceMillis);
+    }
+
+    /*
+        Committing the first days on their own doesn't make a resync of the same forecast
+        rewrite them.
+     */
+    public void testResyncWritesNothingNew() throws IOException {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setTransport(new FakeForecastTransport().record(LOCATION, fixture));
+        syncAdapter.syncLocation(new SunshineSyncAdapter.LocationSyncResult(LOCATION));
+
+        new ForecastHttpCache(mContext).clear();
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        syncAdapter.syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(0, result.changedCount);
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/*
+    Cancels syncs while they wait on the network, parse and write, and checks that each one
+    stops within a bound, leaves no rows behind and isn't held against the server.  How long
+    cancelling took is logged.
+ */
+public class TestSyncCancellation extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncCancellation.class.getSimpleName();
+
+    private static final String LOCATION = "94043";
+    private static final long MAX_CANCEL_MILLIS = 1000;
+
+    private FakeForecastServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        mServer = new FakeForecastServer();
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /*
+        Runs syncLocation on its own thread, the way the framework runs onPerformSync.
+     */
+    private Thread startSync(final SunshineSyncAdapter.LocationSyncResult result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mSyncAdapter.syncLocation(result);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /*
+        What the framework does to cancel: onSyncCanceled, whose default interrupts the sync
+        thread it knows about.  Ours isn't known to it, so it is interrupted here.
+        @return how long the sync thread took to finish, in milliseconds
+     */
+    private long cancel(Thread syncThread) throws InterruptedException {
+        long start = System.nanoTime();
+        mSyncAdapter.onSyncCanceled();
+        syncThread.interrupt();
+        syncThread.join(MAX_CANCEL_MILLIS * 5);
+        long cancelMillis = (System.nanoTime() - start) / 1000000;
+        assertFalse("Error: the cancelled sync is still running", syncThread.isAlive());
+        assertTrue("Error: cancelling took " + cancelMillis + " ms",
+                cancelMillis < MAX_CANCEL_MILLIS);
+        return cancelMillis;
+    }
+
+    private void assertCancelled(SunshineSyncAdapter.LocationSyncResult result) {
+        assertCancelled(result, 0);
+    }
+
+    /*
+        @param committedRows the rows the sync had committed before it was cancelled, which stay
+     */
+    private void assertCancelled(SunshineSyncAdapter.LocationSyncResult result, int committedRows) {
+        assertTrue("Error: the sync wasn't reported as cancelled", result.cancelled);
+        assertFalse("Error: a cancelled sync shouldn't store a status", result.hasStatus);
+        assertEquals("Error: a cancelled sync left rows behind", committedRows, countWeatherRows());
+        ForecastCircuitBreaker breaker = new ForecastCircuitBreaker(mContext);
+        assertEquals("Error: cancelling was counted against the server",
+                0, breaker.getConsecutiveFailures());
+    }
+
+    public void testCancelWhileDownloading() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture).setDelay(10000));
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        Thread syncThread = startSync(result);
+        while (mServer.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        long cancelMillis = cancel(syncThread);
+
+        assertCancelled(result);
+        Log.i(LOG_TAG, "Cancelled while downloading in " + cancelMillis + " ms");
+    }
+
+    /*
+        The transport stops half way through a long forecast and waits there for the cancel,
+        so the cancel always lands while the forecast is being parsed and written.
+     */
+    public void testCancelWhileParsing() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        byte[] payload = TestForecastJsonParser.repeatDays(fixture, 100);
+        FakeForecastTransport transport = new FakeForecastTransport()
+                .record(LOCATION, payload)
+                .setBlockAfterBytes(payload.length / 2);
+        mSyncAdapter.setTransport(transport);
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        Thread syncThread = startSync(result);
+        assertTrue("Error: the sync didn't get half way through the forecast",
+                transport.awaitBlocked(MAX_CANCEL_MILLIS * 5));
+        long cancelMillis = cancel(syncThread);
+
+        assertCancelled(result);
+        Log.i(LOG_TAG, "Cancelled while parsing in " + cancelMillis + " ms");
+    }
+
+    /*
+        @return where the forecast's day number dayIndex starts, counting from 0
+     */
+    private static int indexOfDay(byte[] forecast, int dayIndex) throws Exception {
+        String json = new String(forecast, "UTF-8");
+        int index = -1;
+        for (int i = 0; i <= dayIndex; i++) {
+            index = json.indexOf("\"dt\"", index + 1);
+        }
+        return index;
+    }
+
+    private double getMaxTemp(long date) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION, date),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        assertTrue("Error: no weather stored for " + date, cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(0);
+        cursor.close();
+        return maxTemp;
+    }
+
+    /*
+        Today and tomorrow are committed ahead of the rest of the forecast.  They are a complete
+        forecast for those days, so a cancel that comes after them leaves them in place and
+        nothing else.
+     */
+    public void testCancelAfterFirstDaysCommitted() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        FakeForecastTransport transport = new FakeForecastTransport()
+                .record(LOCATION, fixture)
+                .setBlockAfterBytes(indexOfDay(fixture, 2));
+        mSyncAdapter.setTransport(transport);
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        Thread syncThread = startSync(result);
+        assertTrue("Error: the sync didn't get to the third day",
+                transport.awaitBlocked(MAX_CANCEL_MILLIS * 5));
+        assertEquals("Error: the first days weren't committed ahead of the others",
+                2, countWeatherRows());
+        long cancelMillis = cancel(syncThread);
+
+        assertCancelled(result, 2);
+        Log.i(LOG_TAG, "Cancelled after the first days in " + cancelMillis + " ms");
+    }
+
+    /*
+        The first days replace what was stored for them, even if the sync is then cancelled.
+     */
+    public void testCancelAfterFirstDaysKeepsStoredForecast() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        byte[] stored = new String(fixture, "UTF-8").replace("\"max\": 11.41", "\"max\": 31.41")
+                .getBytes("UTF-8");
+        mSyncAdapter.setTransport(new FakeForecastTransport().record(LOCATION, stored));
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        mSyncAdapter.syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        long now = System.currentTimeMillis();
+        assertEquals(31.41, getMaxTemp(now));
+
+        FakeForecastTransport transport = new FakeForecastTransport()
+                .record(LOCATION, fixture)
+                .setBlockAfterBytes(indexOfDay(fixture, 2));
+        mSyncAdapter.setTransport(transport);
+        result = new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        Thread syncThread = startSync(result);
+        assertTrue(transport.awaitBlocked(MAX_CANCEL_MILLIS * 5));
+        assertEquals(11.41, getMaxTemp(now));
+        cancel(syncThread);
+
+        assertTrue(result.cancelled);
+        assertEquals(14, countWeatherRows());
+        assertEquals("Error: the cancelled sync's first day was taken back",
+                11.41, getMaxTemp(now));
+    }
+
+    /*
+        Past the first days, the forecast is only written once all of it has been read, in a
+        single transaction.  Cancelling deep into a long forecast leaves nothing behind.
+     */
+    public void testCancelledLongForecastIsNotWritten() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        byte[] payload = TestForecastJsonParser.repeatDays(fixture, 30);
+        FakeForecastTransport transport = new FakeForecastTransport()
+                .record(LOCATION, payload)
+                .setBlockAfterBytes(indexOfDay(payload, 250));
+        mSyncAdapter.setTransport(transport);
+        mSyncAdapter.setProgressive(false);
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        Thread syncThread = startSync(result);
+        assertTrue(transport.awaitBlocked(MAX_CANCEL_MILLIS * 5));
+        assertEquals("Error: days were written before the forecast was read",
+                0, countWeatherRows());
+        cancel(syncThread);
+
+        assertCancelled(result);
+    }
+
+    /*
+        Cancelling the sync before the response is read also leaves the cache alone, so the next
+        sync doesn't mistake a half read response for a complete one.
+     */
+    public void testCancelledSyncIsNotCached() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture)
+                .addHeader("Cache-Control", "max-age=600")
+                .setDelay(10000));
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        Thread syncThread = startSync(result);
+        while (mServer.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        cancel(syncThread);
+        assertCancelled(result);
+
+        // A new sync, after the cancelled one, goes back to the server
+        mServer.enqueue(new FakeForecastServer.Response(200, fixture));
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+        result = new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        mSyncAdapter.syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(14, countWeatherRows());
+    }
+}
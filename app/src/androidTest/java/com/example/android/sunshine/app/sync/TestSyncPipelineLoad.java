@@ -0,0 +1,261 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SyncResult;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.TestUtilities;
+
+import java.io.File;
+import java.util.Arrays;
+
+/*
+    Runs the whole sync, from the HTTP request to the notifications, against the stand-in
+    server, with neither network nor API key.  Recorded responses are replayed as they came
+    from OpenWeatherMap, and the synthetic ones make up any number of cities and days as well
+    as the errors and broken responses a sync must survive.  The benchmark logs throughput and
+    sync latency for growing loads.
+
+    To refresh the fixtures from the live API, run testRecordLiveResponses with an API key on a
+    connected device, passing -e recordLive true to am instrument, then pull the .http files
+    from the app's files/fixtures into src/androidTest/resources.
+ */
+public class TestSyncPipelineLoad extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncPipelineLoad.class.getSimpleName();
+
+    private static final String RECORD_LIVE_ARGUMENT = "recordLive";
+    // The recorded 14 day forecast, saved the way RecordingForecastTransport saves responses
+    private static final String RECORDED_FIXTURE = "94043.http";
+    private static final String[] LIVE_LOCATIONS = {"94043", "10001", "London,UK", "nowhere-12345"};
+
+    private static final String LOCATION = "94043";
+    private static final int[] CITY_COUNTS = {1, 5, 20};
+    private static final int[] DAY_COUNTS = {14, 100};
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    private FakeForecastServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        resetSyncState();
+        mServer = new FakeForecastServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        TestUtilities.deleteAllRecords(mContext);
+        resetSyncState();
+        super.tearDown();
+    }
+
+    private void resetSyncState() {
+        new ForecastCircuitBreaker(mContext).reset();
+        new ForecastHttpCache(mContext).clear();
+        new SyncScheduler(mContext).reset();
+    }
+
+    /*
+        A new adapter has a closed breaker of its own, so failures of one case don't keep the
+        next one from being fetched.
+     */
+    private SunshineSyncAdapter newSyncAdapter() {
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+        return syncAdapter;
+    }
+
+    private static boolean isRecordingLive() {
+        return Boolean.parseBoolean(
+                InstrumentationRegistry.getArguments().getString(RECORD_LIVE_ARGUMENT));
+    }
+
+    private File getFixtureDirectory() {
+        return new File(mContext.getFilesDir(), "fixtures");
+    }
+
+    public void testRecordAndReplay() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        byte[] fixture = TestForecastJsonParser.readFixture(TestForecastJsonParser.FORECAST_FIXTURE);
+        byte[] gzipped = TestForecastCompression.gzip(fixture);
+        mServer.route(LOCATION, new FakeForecastServer.Response(200, gzipped)
+                .addHeader("Content-Type", "application/json; charset=utf-8")
+                .addHeader("Content-Encoding", "gzip")
+                .addHeader("Cache-Control", "max-age=600"));
+
+        // Record what a sync gets from the server
+        File directory = new File(mContext.getCacheDir(), "recorded");
+        RecordingForecastTransport recorder =
+                new RecordingForecastTransport(new HttpForecastTransport(), directory);
+        SunshineSyncAdapter syncAdapter = newSyncAdapter();
+        syncAdapter.setTransport(recorder);
+        SunshineSyncAdapter.LocationSyncResult recorded =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        syncAdapter.syncLocation(recorded);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, recorded.status);
+        assertEquals(1, recorder.getRecordedCount());
+
+        RecordingForecastTransport.Recording recording = RecordingForecastTransport.Recording.read(
+                RecordingForecastTransport.fixtureFile(directory, LOCATION));
+        assertEquals(200, recording.code);
+        assertTrue("Error: the recording isn't the body as it came over the wire",
+                Arrays.equals(gzipped, recording.body));
+
+        // Replay it from a server that knows nothing else, into an empty database
+        mServer.shutdown();
+        TestUtilities.deleteAllRecords(mContext);
+        resetSyncState();
+        mServer = new FakeForecastServer();
+        mServer.route(LOCATION, recording.toServerResponse());
+        SunshineSyncAdapter.LocationSyncResult replayed =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        newSyncAdapter().syncLocation(replayed);
+
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, replayed.status);
+        assertEquals(recorded.rowCount, replayed.rowCount);
+        assertEquals(recorded.changedCount, replayed.changedCount);
+    }
+
+    /*
+        Only records when asked to with the recordLive argument, since it needs the network and
+        an API key.
+     */
+    public void testRecordLiveResponses() throws Exception {
+        if ( !isRecordingLive() || Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        RecordingForecastTransport recorder = new RecordingForecastTransport(
+                new HttpForecastTransport(), getFixtureDirectory());
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setTransport(recorder);
+        for (String location : LIVE_LOCATIONS) {
+            new ForecastHttpCache(mContext).clear();
+            SunshineSyncAdapter.LocationSyncResult result =
+                    new SunshineSyncAdapter.LocationSyncResult(location);
+            syncAdapter.syncLocation(result);
+            Log.i(LOG_TAG, "Recorded " + location + ", status " + result.status);
+        }
+        assertEquals(LIVE_LOCATIONS.length, recorder.getRecordedCount());
+        Log.i(LOG_TAG, "Fixtures are in " + getFixtureDirectory());
+    }
+
+    public void testReplayRecordedFixture() throws Exception {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        RecordingForecastTransport.Recording recording = RecordingForecastTransport.Recording.parse(
+                TestForecastJsonParser.readFixture(RECORDED_FIXTURE));
+        assertEquals(200, recording.code);
+        mServer.route(LOCATION, recording.toServerResponse());
+
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        newSyncAdapter().syncLocation(result);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertEquals(14, result.rowCount);
+    }
+
+    private SunshineSyncAdapter.LocationSyncResult syncPayload(byte[] payload) {
+        mServer.route(LOCATION, new FakeForecastServer.Response(200, payload));
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(LOCATION);
+        newSyncAdapter().syncLocation(result);
+        return result;
+    }
+
+    public void testSyntheticForecasts() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        for (int days : new int[]{1, 14, 365}) {
+            SunshineSyncAdapter.LocationSyncResult result =
+                    syncPayload(ForecastPayloadGenerator.forecast(0, days, days));
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+            assertEquals(days, result.rowCount);
+        }
+    }
+
+    public void testErrorResponses() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                syncPayload(ForecastPayloadGenerator.error(404, "Error: Not found city")).status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                syncPayload(ForecastPayloadGenerator.error(500, "Internal error")).status);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                syncPayload(ForecastPayloadGenerator.error(401, "Invalid API key")).status);
+    }
+
+    public void testMalformedResponses() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        for (int kind = 0; kind < ForecastPayloadGenerator.MALFORMED_KINDS; kind++) {
+            SunshineSyncAdapter.LocationSyncResult result =
+                    syncPayload(ForecastPayloadGenerator.malformed(kind, 0, kind));
+            // A response cut short looks like a dropped connection, the others are bad data
+            int expected = kind == ForecastPayloadGenerator.MALFORMED_TRUNCATED
+                    ? SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                    : SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+            assertEquals("Error: wrong status for malformed response " + kind,
+                    expected, result.status);
+        }
+    }
+
+    /*
+        Logs throughput and sync latency for growing numbers of cities and days.  Every round
+        syncs the preferred location plus the tracked cities the way onPerformSync does, with
+        the HTTP cache cleared so each one downloads, parses and stores everything.  The fan-out
+        has no consumers, so no notification, widget, Muzei or Wear update goes out.
+     */
+    public void testBenchmarkSyncLoad() {
+        if ( Build.VERSION.SDK_INT < 11 ) {
+            return;
+        }
+        String preferredLocation = Utility.getPreferredLocation(mContext);
+        for (int cities : CITY_COUNTS) {
+            for (int days : DAY_COUNTS) {
+                TestUtilities.deleteAllRecords(mContext);
+                resetSyncState();
+                mServer.route(preferredLocation, new FakeForecastServer.Response(200,
+                        ForecastPayloadGenerator.forecast(0, days, 0)));
+                for (int i = 1; i < cities; i++) {
+                    mServer.route(ForecastPayloadGenerator.location(i), new FakeForecastServer.Response(
+                            200, ForecastPayloadGenerator.forecast(i, days, i)));
+                    SunshineSyncAdapter.trackLocation(mContext, ForecastPayloadGenerator.location(i));
+                }
+
+                SunshineSyncAdapter syncAdapter = newSyncAdapter();
+                syncAdapter.setFanOut(new ForecastFanOut(mContext));
+                long[] syncNanos = new long[BENCHMARK_ROUNDS];
+                long totalNanos = 0;
+                for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                    new ForecastHttpCache(mContext).clear();
+                    SyncResult syncResult = new SyncResult();
+                    long start = System.nanoTime();
+                    syncAdapter.syncLocations(preferredLocation, syncResult);
+                    syncNanos[round] = System.nanoTime() - start;
+                    totalNanos += syncNanos[round];
+                    assertEquals(cities * days, syncResult.stats.numEntries);
+                }
+
+                Arrays.sort(syncNanos);
+                long rows = (long) cities * days * BENCHMARK_ROUNDS;
+                Log.i(LOG_TAG, String.format("%d cities x %d days: %d rows/s, sync p50 %d ms, " +
+                                "p95 %d ms, max %d ms",
+                        cities, days, rows * 1000000000L / Math.max(totalNanos, 1),
+                        TestUtilities.percentile(syncNanos, 50) / 1000000, TestUtilities.percentile(syncNanos, 95) / 1000000,
+                        syncNanos[syncNanos.length - 1] / 1000000));
+            }
+        }
+    }
+}
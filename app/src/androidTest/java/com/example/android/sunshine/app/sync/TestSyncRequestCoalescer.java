@@ -0,0 +1,82 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Fires bursts of sync requests at a coalescer whose sender only counts, and checks how many
+    syncs would have been asked for.
+ */
+public class TestSyncRequestCoalescer extends AndroidTestCase {
+
+    private static final long WINDOW_MILLIS = 100;
+
+    private HandlerThread mHandlerThread;
+    private SyncRequestCoalescer mCoalescer;
+    private final AtomicInteger mRequestedSyncs = new AtomicInteger();
+    private CountDownLatch mSent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestSyncRequestCoalescer");
+        mHandlerThread.start();
+        mSent = new CountDownLatch(1);
+        mCoalescer = new SyncRequestCoalescer(new Handler(mHandlerThread.getLooper()),
+                WINDOW_MILLIS, new SyncRequestCoalescer.Sender() {
+                    @Override
+                    public void requestSync(Context context) {
+                        mRequestedSyncs.incrementAndGet();
+                        mSent.countDown();
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    public void testBurstIsCoalesced() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            mCoalescer.request(mContext);
+        }
+        assertTrue(mSent.await(5, TimeUnit.SECONDS));
+        // Give a stray second sync the chance to show up
+        Thread.sleep(WINDOW_MILLIS * 2);
+
+        assertEquals(1, mRequestedSyncs.get());
+        assertEquals(1, mCoalescer.getSentCount());
+        assertEquals(9, mCoalescer.getCoalescedCount());
+    }
+
+    public void testRequestDuringSyncIsSkipped() throws InterruptedException {
+        mCoalescer.onSyncStarted(Utility.getPreferredLocation(mContext));
+        mCoalescer.request(mContext);
+        Thread.sleep(WINDOW_MILLIS * 2);
+        assertEquals(0, mRequestedSyncs.get());
+        assertEquals(1, mCoalescer.getSkippedCount());
+
+        // Once it's done a new request goes through again
+        mCoalescer.onSyncFinished();
+        mCoalescer.request(mContext);
+        assertTrue(mSent.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mRequestedSyncs.get());
+    }
+
+    public void testSyncOfAnotherLocationDoesNotSkip() throws InterruptedException {
+        mCoalescer.onSyncStarted(Utility.getPreferredLocation(mContext) + "-elsewhere");
+        mCoalescer.request(mContext);
+        assertTrue(mSent.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mCoalescer.getSkippedCount());
+    }
+}
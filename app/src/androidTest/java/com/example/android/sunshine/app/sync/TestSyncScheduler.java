@@ -0,0 +1,110 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Feeds the scheduler made up sync outcomes and checks the interval it settles on.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+
+    private SyncScheduler mScheduler;
+    private int mMinInterval;
+    private int mMaxInterval;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new SyncScheduler(mContext);
+        mScheduler.reset();
+        mMinInterval = mContext.getResources().getInteger(R.integer.sync_interval_min_minutes) * 60;
+        mMaxInterval = mContext.getResources().getInteger(R.integer.sync_interval_max_minutes) * 60;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.reset();
+        super.tearDown();
+    }
+
+    static List<SunshineSyncAdapter.LocationSyncResult> syncOf(String locationSetting,
+            int status, int rowCount, int changedCount) {
+        SunshineSyncAdapter.LocationSyncResult result =
+                new SunshineSyncAdapter.LocationSyncResult(locationSetting);
+        if (status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+            result.onWeatherDataStored(rowCount, changedCount, 0);
+        } else {
+            result.setStatus(status);
+        }
+        List<SunshineSyncAdapter.LocationSyncResult> results =
+                new ArrayList<SunshineSyncAdapter.LocationSyncResult>();
+        results.add(result);
+        return results;
+    }
+
+    public void testStableForecastStretchesInterval() {
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, mScheduler.getInterval());
+        assertEquals(SyncScheduler.REASON_DEFAULT, mScheduler.getReason());
+
+        for (int i = 0; i < 10; i++) {
+            mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 14, 0));
+        }
+        assertEquals(mMaxInterval, mScheduler.getInterval());
+        assertEquals(SyncScheduler.REASON_STABLE, mScheduler.getReason());
+        assertEquals(0f, mScheduler.getVolatility(LOCATION));
+    }
+
+    public void testVolatileForecastShrinksInterval() {
+        assertTrue(mScheduler.onSyncFinished(
+                syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 14, 14)));
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL / 2, mScheduler.getInterval());
+        assertEquals(SyncScheduler.REASON_VOLATILE, mScheduler.getReason());
+
+        for (int i = 0; i < 10; i++) {
+            mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 14, 14));
+        }
+        assertEquals(mMinInterval, mScheduler.getInterval());
+    }
+
+    public void testUnchangedForecastKeepsInterval() {
+        mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 14, 14));
+        int interval = mScheduler.getInterval();
+        float volatility = mScheduler.getVolatility(LOCATION);
+
+        // Served from the http cache or not modified, so nothing was stored to learn from
+        for (int i = 0; i < 5; i++) {
+            assertFalse(mScheduler.onSyncFinished(
+                    syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 0, 0)));
+        }
+        assertEquals(interval, mScheduler.getInterval());
+        assertEquals(SyncScheduler.REASON_VOLATILE, mScheduler.getReason());
+        assertEquals(volatility, mScheduler.getVolatility(LOCATION));
+    }
+
+    public void testServerDownBacksOff() {
+        mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 14, 4));
+        int interval = mScheduler.getInterval();
+        assertEquals(SyncScheduler.REASON_STEADY, mScheduler.getReason());
+
+        mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, 0, 0));
+        assertEquals(1, mScheduler.getConsecutiveFailures());
+        assertEquals(Math.min(interval * 2, mMaxInterval), mScheduler.getInterval());
+        assertEquals(SyncScheduler.REASON_SERVER_DOWN, mScheduler.getReason());
+
+        for (int i = 0; i < 20; i++) {
+            mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, 0, 0));
+        }
+        assertEquals(mMaxInterval, mScheduler.getInterval());
+
+        // Back to normal as soon as the server answers again
+        mScheduler.onSyncFinished(syncOf(LOCATION, SunshineSyncAdapter.LOCATION_STATUS_OK, 14, 4));
+        assertEquals(0, mScheduler.getConsecutiveFailures());
+        assertEquals(interval, mScheduler.getInterval());
+    }
+}
@@ -124,9 +124,25 @@ public class SettingsActivity extends PreferenceActivity
     @Override
     public boolean onPreferenceChange(Preference preference, Object value) {
         setPreferenceSummary(preference, value);
+        if ( preference.getKey().equals(getString(R.string.pref_location_key)) ) {
+            trackPreviousLocation(value.toString());
+        }
         return true;
     }
 
+    /**
+     * Keeps syncing the location being switched away from, so that switching back to it shows
+     * its forecast straight away instead of waiting on the network.  A location the server
+     * didn't know isn't worth keeping.
+     */
+    private void trackPreviousLocation(String newLocation) {
+        String previousLocation = Utility.getPreferredLocation(this);
+        if ( !previousLocation.equals(newLocation)
+                && Utility.getLocationStatus(this) == SunshineSyncAdapter.LOCATION_STATUS_OK ) {
+            SunshineSyncAdapter.trackLocation(this, previousLocation);
+        }
+    }
+
     // This gets called after the preference is changed, which is important because we
     // start our synchronization here
     @Override
@@ -138,6 +154,7 @@ public class SettingsActivity extends PreferenceActivity
             SunshineSyncAdapter.syncImmediately(this);
         } else if ( key.equals(getString(R.string.pref_units_key)) ) {
             // units have changed. update lists of weather entries accordingly
+            // No need to sync, temperatures are stored in metric and converted when displayed
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
         } else if ( key.equals(getString(R.string.pref_location_status_key)) ) {
             // our location status has changed.  Update the summary accordingly
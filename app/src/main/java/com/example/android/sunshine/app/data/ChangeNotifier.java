@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds back the change notifications of the provider's bulk writes for a short window and then
+ * sends each distinct URI once.  A sync writes several batches per location in quick
+ * succession, and every notification makes each loader watching it requery, so the batches of
+ * one sync should reach them as a single change.  A write of a single row, such as the UI
+ * makes, is sent right away instead.
+ *
+ * Weather changes are kept by location and date, and go out as narrowly as they can: the day's
+ * URI if only one day of a location changed, the location's URI if more did, and the weather
+ * table's only if a write couldn't say which rows it touched.
+ */
+final class ChangeNotifier {
+
+    static final long DELAY_MILLIS = 100;
+
+    /**
+     * A set of changes, coalesced down to the URIs observers should hear about.  Not thread
+     * safe, the notifier guards its own.
+     */
+    static final class Changes {
+        // Tables or rows changed as a whole
+        private final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+        // location setting -> the one date changed for it
+        private final HashMap<String, Long> mDates = new HashMap<String, Long>();
+        // locations with more than one date changed
+        private final LinkedHashSet<String> mLocations = new LinkedHashSet<String>();
+
+        void add(Uri uri) {
+            mUris.add(uri);
+        }
+
+        void addWeather(String locationSetting, long date) {
+            if (mLocations.contains(locationSetting)) {
+                return;
+            }
+            Long changedDate = mDates.get(locationSetting);
+            if (changedDate == null) {
+                mDates.put(locationSetting, date);
+            } else if (changedDate != date) {
+                mDates.remove(locationSetting);
+                mLocations.add(locationSetting);
+            }
+        }
+
+        void addAll(Changes changes) {
+            mUris.addAll(changes.mUris);
+            for (String locationSetting : changes.mLocations) {
+                mDates.remove(locationSetting);
+                mLocations.add(locationSetting);
+            }
+            for (Map.Entry<String, Long> entry : changes.mDates.entrySet()) {
+                addWeather(entry.getKey(), entry.getValue());
+            }
+        }
+
+        boolean isEmpty() {
+            return mUris.isEmpty() && mDates.isEmpty() && mLocations.isEmpty();
+        }
+
+        /**
+         * @return the URIs to notify, none of which is covered by another
+         */
+        List<Uri> toUris() {
+            ArrayList<Uri> uris = new ArrayList<Uri>(mUris);
+            // Observers of a location or a day hear about their whole table changing anyway
+            if (!mUris.contains(WeatherContract.WeatherEntry.CONTENT_URI)) {
+                for (String locationSetting : mLocations) {
+                    uris.add(WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+                }
+                for (Map.Entry<String, Long> entry : mDates.entrySet()) {
+                    uris.add(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            entry.getKey(), entry.getValue()));
+                }
+            }
+            return uris;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private Changes mPending = new Changes();
+    private boolean mScheduled;
+    private int mNotificationCount;
+
+    ChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Queues the changes, to be sent along with everything else changed in the window.
+     */
+    synchronized void post(Changes changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        mPending.addAll(changes);
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mFlush, DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Sends what is queued right away.
+     */
+    void flush() {
+        Changes changes;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            mScheduled = false;
+            changes = mPending;
+            mPending = new Changes();
+        }
+        send(changes);
+    }
+
+    /**
+     * Sends the changes right away, leaving whatever is queued to go out with its window.
+     */
+    void send(Changes changes) {
+        List<Uri> uris = changes.toUris();
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+        synchronized (this) {
+            mNotificationCount += uris.size();
+        }
+    }
+
+    /**
+     * @return how many URIs were notified so far, for tests
+     */
+    synchronized int getNotificationCount() {
+        return mNotificationCount;
+    }
+}
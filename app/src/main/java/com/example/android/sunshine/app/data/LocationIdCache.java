@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * Location row ids by location setting, shared by the whole process so that a sync finds the
+ * location its forecast belongs to without querying for it.
+ *
+ * Entries are only added by {@link WeatherProvider} as it upserts locations, and the provider
+ * drops all of them whenever a write could have changed which row a setting maps to.  Each entry
+ * also remembers the city name, since a location whose city changes has to be written again,
+ * and the coordinates, which together with the city let the provider read a forecast without
+ * joining the location table.
+ */
+public final class LocationIdCache {
+
+    private static final LocationIdCache sInstance = new LocationIdCache();
+
+    static final class Entry {
+        final long id;
+        final String cityName;
+        final double coordLat;
+        final double coordLong;
+
+        Entry(long id, String cityName, double coordLat, double coordLong) {
+            this.id = id;
+            this.cityName = cityName;
+            this.coordLat = coordLat;
+            this.coordLong = coordLong;
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Bumped on every invalidation, so an upsert that raced with one doesn't put back a stale id
+    private int mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+
+    private LocationIdCache() {
+    }
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the row id of the location, or -1 if it isn't cached or is stored with another
+     * city name.
+     */
+    public synchronized long get(String locationSetting, String cityName) {
+        Entry entry = mEntries.get(locationSetting);
+        if (entry == null || !entry.cityName.equals(cityName)) {
+            mMissCount++;
+            return -1;
+        }
+        mHitCount++;
+        return entry.id;
+    }
+
+    /**
+     * Looks the location up for a read, which has no city name to check it against.  Not
+     * counted as a hit or miss, those are about the syncs' writes.
+     * @return the cached location, or null
+     */
+    synchronized Entry find(String locationSetting) {
+        return mEntries.get(locationSetting);
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches what was just written, unless the cache was invalidated since {@code generation}
+     * was read.
+     */
+    synchronized void put(int generation, String locationSetting, long id, String cityName,
+                          double coordLat, double coordLong) {
+        if (generation == mGeneration) {
+            mEntries.put(locationSetting, new Entry(id, cityName, coordLat, coordLong));
+        }
+    }
+
+    synchronized void invalidate() {
+        mEntries.clear();
+        mGeneration++;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ring buffers of the sync stage timings behind {@link SyncStatsEntry#CONTENT_URI}, one per stage.
+ */
+class SyncStageStats {
+
+    static final String[] SUMMARY_COLUMNS = {
+            SyncStatsEntry._ID,
+            SyncStatsEntry.COLUMN_STAGE,
+            SyncStatsEntry.COLUMN_SAMPLES,
+            SyncStatsEntry.COLUMN_P50,
+            SyncStatsEntry.COLUMN_P95,
+            SyncStatsEntry.COLUMN_MAX,
+            SyncStatsEntry.COLUMN_TOTAL_BYTES
+    };
+
+    private static class Ring {
+        final long[] durations;
+        final long[] bytes;
+        int next;
+        int size;
+
+        Ring(int capacity) {
+            durations = new long[capacity];
+            bytes = new long[capacity];
+        }
+
+        void add(long duration, long byteCount) {
+            durations[next] = duration;
+            bytes[next] = byteCount;
+            next = (next + 1) % durations.length;
+            size = Math.min(size + 1, durations.length);
+        }
+    }
+
+    private final int mCapacity;
+    // Kept in the order the stages were first seen, which is the order they run in
+    private final Map<String, Ring> mStages = new LinkedHashMap<String, Ring>();
+
+    SyncStageStats(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds a sample from its {@link SyncStatsEntry} ContentValues.
+     * @throws IllegalArgumentException if it doesn't name a stage and a duration.
+     */
+    synchronized void add(ContentValues values) {
+        String stage = values.getAsString(SyncStatsEntry.COLUMN_STAGE);
+        Long duration = values.getAsLong(SyncStatsEntry.COLUMN_DURATION);
+        if (stage == null || duration == null) {
+            throw new IllegalArgumentException("Sync sample without stage or duration: " + values);
+        }
+        Long bytes = values.getAsLong(SyncStatsEntry.COLUMN_BYTES);
+
+        Ring ring = mStages.get(stage);
+        if (ring == null) {
+            ring = new Ring(mCapacity);
+            mStages.put(stage, ring);
+        }
+        ring.add(duration, bytes == null ? 0 : bytes);
+    }
+
+    /**
+     * @return one row per stage, with the columns in {@link #SUMMARY_COLUMNS}.
+     */
+    synchronized Cursor query() {
+        MatrixCursor cursor = new MatrixCursor(SUMMARY_COLUMNS, mStages.size());
+        long id = 0;
+        for (Map.Entry<String, Ring> entry : mStages.entrySet()) {
+            Ring ring = entry.getValue();
+            long[] sorted = Arrays.copyOf(ring.durations, ring.size);
+            Arrays.sort(sorted);
+            long totalBytes = 0;
+            for (int i = 0; i < ring.size; i++) {
+                totalBytes += ring.bytes[i];
+            }
+            cursor.addRow(new Object[]{
+                    ++id,
+                    entry.getKey(),
+                    ring.size,
+                    percentile(sorted, 50),
+                    percentile(sorted, 95),
+                    sorted[sorted.length - 1],
+                    totalBytes
+            });
+        }
+        return cursor;
+    }
+
+    synchronized int clear() {
+        int count = mStages.size();
+        mStages.clear();
+        return count;
+    }
+
+    /**
+     * Nearest rank percentile of a sorted, non empty array.
+     */
+    static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
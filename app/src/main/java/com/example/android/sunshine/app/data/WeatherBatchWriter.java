@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Writes {@link WeatherRows} into the weather table with statements that are compiled once and
+ * then only rebound for every row, instead of building and compiling new SQL per row the way
+ * {@link SQLiteDatabase#insert} does.
+ *
+ * Meant to live for a single transaction: create it after beginTransaction() and close it
+ * before endTransaction().
+ */
+class WeatherBatchWriter {
+
+    private static final String LOG_TAG = WeatherBatchWriter.class.getSimpleName();
+
+    // Column order shared by both statements, the bind indices below depend on it
+    private static final String SQL_INSERT = "INSERT INTO " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherEntry.COLUMN_DEGREES + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherEntry.COLUMN_DATE +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_UPDATE = "UPDATE " + WeatherEntry.TABLE_NAME + " SET " +
+            WeatherEntry.COLUMN_SHORT_DESC + " = ?, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " = ?, " +
+            WeatherEntry.COLUMN_MIN_TEMP + " = ?, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " = ?, " +
+            WeatherEntry.COLUMN_HUMIDITY + " = ?, " +
+            WeatherEntry.COLUMN_PRESSURE + " = ?, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " = ?, " +
+            WeatherEntry.COLUMN_DEGREES + " = ? " +
+            " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " = ?";
+
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdate;
+
+    WeatherBatchWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Inserts (or, through the table's ON CONFLICT REPLACE, replaces) a row.
+     * @return the new row's id, or -1 on failure, which like {@link SQLiteDatabase#insert}
+     * leaves the other rows of the transaction alone
+     */
+    long insert(WeatherRows rows, int row) {
+        if (mInsert == null) {
+            mInsert = mDb.compileStatement(SQL_INSERT);
+        }
+        bind(mInsert, rows, row);
+        try {
+            return mInsert.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            Log.e(LOG_TAG, "Error inserting weather row " + row, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Overwrites the values of the stored row with the same location and date.
+     */
+    void update(WeatherRows rows, int row) {
+        if (mUpdate == null) {
+            mUpdate = mDb.compileStatement(SQL_UPDATE);
+        }
+        bind(mUpdate, rows, row);
+        mUpdate.execute();
+    }
+
+    void close() {
+        if (mInsert != null) {
+            mInsert.close();
+            mInsert = null;
+        }
+        if (mUpdate != null) {
+            mUpdate.close();
+            mUpdate = null;
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, WeatherRows rows, int row) {
+        statement.bindString(1, rows.getShortDesc(row));
+        statement.bindLong(2, rows.getWeatherId(row));
+        statement.bindDouble(3, rows.getMinTemp(row));
+        statement.bindDouble(4, rows.getMaxTemp(row));
+        statement.bindDouble(5, rows.getHumidity(row));
+        statement.bindDouble(6, rows.getPressure(row));
+        statement.bindDouble(7, rows.getWindSpeed(row));
+        statement.bindDouble(8, rows.getDegrees(row));
+        statement.bindLong(9, rows.getLocationId(row));
+        statement.bindLong(10, rows.getDate(row));
+    }
+}
@@ -36,6 +36,13 @@ public class WeatherContract {
     // the content provider.
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
+    // ContentResolver.call method that checkpoints the database's write-ahead log, meant for
+    // after a sync is done writing.  The returned Bundle holds the frames in the log and how
+    // many of them were checkpointed, it is empty without write-ahead logging.
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+    public static final String EXTRA_LOG_FRAMES = "log_frames";
+    public static final String EXTRA_CHECKPOINTED_FRAMES = "checkpointed_frames";
+
     // Possible paths (appended to base content URI for possible URI's)
     // For instance, content://com.example.android.sunshine.app/weather/ is a valid path for
     // looking at weather data. content://com.example.android.sunshine.app/givemeroot/ will fail,
@@ -43,6 +50,7 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_STATS = "sync_stats";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,6 +89,21 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Whether the location is synced alongside the preferred location, stored as 0 or 1.
+        public static final String COLUMN_TRACKED = "tracked";
+
+        // The LocationStatus of the location's last sync, and when it last succeeded in
+        // milliseconds since the epoch.  Both are null before the first sync.
+        public static final String COLUMN_SYNC_STATUS = "sync_status";
+        public static final String COLUMN_LAST_SYNC = "last_sync";
+
+        // ContentResolver.call method that inserts a location, or updates its city and
+        // coordinates if the stored city name is different, in one transaction.  The extras hold
+        // the setting, city and coordinates under their column names, and the returned Bundle
+        // holds the row id in EXTRA_LOCATION_ID.
+        public static final String METHOD_UPSERT = "upsert_location";
+        public static final String EXTRA_LOCATION_ID = "location_id";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -99,6 +122,24 @@ public class WeatherContract {
 
         public static final String TABLE_NAME = "weather";
 
+        // ContentResolver.call method that merges a forecast into the weather table, only
+        // writing the rows whose values changed.  The rows go in EXTRA_VALUES as a
+        // ContentValues array, the returned Bundle holds the three counts.
+        public static final String METHOD_MERGE = "merge_weather";
+        // ContentResolver.call method that inserts the rows packed by WeatherRows.toBundle, the
+        // columnar alternative to bulkInsert.  METHOD_MERGE accepts the same Bundle.
+        public static final String METHOD_BULK_INSERT = "bulk_insert_weather";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_INSERTED = "inserted";
+        public static final String EXTRA_UPDATED = "updated";
+        public static final String EXTRA_UNCHANGED = "unchanged";
+        // ContentResolver.call method that returns the first forecast of a location from a date
+        // on, for whatever shows only the current conditions, without a cursor.  The arg is the
+        // location setting and the date goes in the extras under COLUMN_DATE, now if there are
+        // no extras.  The returned Bundle holds the date, weather id, temperatures and
+        // description under their column names, and is empty if there is no forecast.
+        public static final String METHOD_CURRENT_CONDITIONS = "current_conditions";
+
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
         // Date, stored as long in milliseconds since the epoch
@@ -165,4 +206,63 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the sync timings the provider keeps in memory.  Each insert adds
+       one sample for a stage, a query returns one row per stage summarizing the last
+       MAX_SAMPLES samples of it. */
+    public static final class SyncStatsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_STATS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_STATS;
+
+        // Samples kept per stage, the oldest ones are dropped first
+        public static final int MAX_SAMPLES = 128;
+
+        // ContentResolver.call method returning the forecast HTTP cache's counters as longs.
+        // Unlike the timings they are kept in a preferences file and outlive the process.
+        public static final String METHOD_HTTP_CACHE_STATS = "http_cache_stats";
+        // Syncs that didn't go to the network because the cached forecast was still fresh
+        public static final String EXTRA_CACHE_HITS = "hits";
+        // Syncs where the server confirmed the cached forecast with a 304
+        public static final String EXTRA_CACHE_NOT_MODIFIED = "not_modified";
+        // Syncs that downloaded the full forecast
+        public static final String EXTRA_CACHE_MISSES = "misses";
+        // The preferences file the sync adapter counts them in, under the same keys
+        public static final String HTTP_CACHE_PREFS_NAME = "forecast_http_cache_stats";
+
+        // Columns of an inserted sample
+        public static final String COLUMN_STAGE = "stage";
+        // Time spent in the stage, in microseconds
+        public static final String COLUMN_DURATION = "duration";
+        // Bytes moved by the stage, 0 for the ones that don't move any
+        public static final String COLUMN_BYTES = "bytes";
+
+        // Columns of the summary returned by a query, durations are in microseconds
+        public static final String COLUMN_SAMPLES = "samples";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+        public static final String COLUMN_MAX = "max";
+        public static final String COLUMN_TOTAL_BYTES = "total_bytes";
+
+        public static final String STAGE_CONNECT = "connect";
+        public static final String STAGE_DOWNLOAD = "download";
+        // Bytes of the decompressed body, where download has the bytes that came over the wire
+        public static final String STAGE_DECOMPRESS = "decompress";
+        public static final String STAGE_PARSE = "parse";
+        public static final String STAGE_LOCATION = "location_upsert";
+        public static final String STAGE_BULK_INSERT = "bulk_insert";
+        public static final String STAGE_DELETE = "delete_old";
+        public static final String STAGE_CHECKPOINT = "checkpoint";
+        public static final String STAGE_WIDGETS = "update_widgets";
+        public static final String STAGE_MUZEI = "update_muzei";
+        public static final String STAGE_NOTIFICATION = "notify_weather";
+        public static final String STAGE_WEAR = "notify_wear";
+        // Not a stage but a milestone: from the start of a location's sync until its first
+        // days were committed, which is when the UI can show them.  Only progressive syncs
+        // have it.
+        public static final String STAGE_FIRST_FORECAST = "first_forecast";
+    }
 }
@@ -15,38 +15,148 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database is opened with write-ahead logging where the platform has it (API level 11 and
+ * up).  A sync writing forecasts then doesn't block the loaders, widgets, Muzei and the watch
+ * reading them: SQLiteDatabase gives readers connections of their own from its pool, and they
+ * keep seeing the last committed data while the sync's transaction is open.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 5;
+
+    // The oldest version onUpgrade can bring up to date without losing data, older ones are
+    // recreated
+    static final int FIRST_UPGRADABLE_VERSION = 2;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Pages the write-ahead log may grow to before a commit copies it back into the database.
+    // Android's own default is much lower (100 pages on AOSP), which has the commits of a big
+    // sync checkpointing over and over.  checkpoint() catches up once the sync is done instead.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    // A location's forecast is looked up by its id and read in date order, by the join behind
+    // the weather/* uris and by the merge of a sync.  The index of the UNIQUE constraint leads
+    // with the date, which only suits the delete of past days, so without this one every
+    // forecast read walks the days of all locations and sorts them.
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+
+    // The tracked locations are what every sync starts from
+    static final String LOCATION_TRACKED_INDEX = "location_tracked";
+
+    static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX IF NOT EXISTS " +
+            WEATHER_LOCATION_DATE_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+
+    static final String SQL_CREATE_LOCATION_TRACKED_INDEX = "CREATE INDEX IF NOT EXISTS " +
+            LOCATION_TRACKED_INDEX + " ON " + LocationEntry.TABLE_NAME + " (" +
+            LocationEntry.COLUMN_TRACKED + ");";
+
+    private final boolean mWriteAheadLogging;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true);
+    }
+
+    /**
+     * For tests that compare journal modes on a database of their own.
+     */
+    WeatherDbHelper(Context context, String name, boolean writeAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+        mWriteAheadLogging = writeAheadLogging
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+        if (mWriteAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
-    public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
-        final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!mWriteAheadLogging) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // Before setWriteAheadLoggingEnabled it has to be turned on once open
+            enableWriteAheadLogging(db);
+        }
+        // Only commits checkpoint, so a read-only open has nothing to set.  The setting is per
+        // connection, and a statement that changes it goes to the one writes go through.
+        if (!db.isReadOnly()) {
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES,
+                    null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Copies as much of the write-ahead log back into the database as can be without waiting
+     * for readers, so that the log doesn't keep growing between syncs and readers don't have to
+     * look through it.
+     * @return the frames in the log and how many of them are now checkpointed, or null if the
+     * database isn't using write-ahead logging or its SQLite doesn't report them.
+     */
+    int[] checkpoint(SQLiteDatabase db) {
+        if (!mWriteAheadLogging) {
+            return null;
+        }
+        // Without an argument it is a passive checkpoint.  Asking for PASSIVE by name, and the
+        // frame counts, need SQLite 3.7.6, which the 3.7.4 of API 11 to 15 predates.
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint", null);
+        try {
+            if (!cursor.moveToFirst() || cursor.getColumnCount() < 3) {
+                return null;
+            }
+            // The columns are busy, log frames and checkpointed frames
+            return new int[]{cursor.getInt(1), cursor.getInt(2)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Create a table to hold locations.  A location consists of the string supplied in the
+    // location setting, the city name, and the latitude and longitude.  A location tracked
+    // before its first sync has no coordinates yet.
+    private static String createLocationTable(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LAT + " REAL, " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL, " +
+                LocationEntry.COLUMN_TRACKED + " INTEGER NOT NULL DEFAULT 0, " +
+                LocationEntry.COLUMN_SYNC_STATUS + " INTEGER, " +
+                LocationEntry.COLUMN_LAST_SYNC + " INTEGER " +
                 " );";
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        final String SQL_CREATE_LOCATION_TABLE = createLocationTable(LocationEntry.TABLE_NAME);
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
                 // Why AutoIncrement here, and not above?
@@ -81,18 +191,76 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        // The location setting needs no index of its own, its UNIQUE constraint comes with one
+        // which also covers the _id the join goes on with
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TRACKED_INDEX);
+        // Any id cached from before this point is for a table that is gone
+        LocationIdCache.getInstance().invalidate();
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (oldVersion < FIRST_UPGRADABLE_VERSION) {
+            // Nothing is known about schemas this old, so they are discarded and the forecast
+            // downloaded again
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        // One step at a time, all within the transaction SQLiteOpenHelper runs this in, so the
+        // stored forecast survives and every device doesn't download it again on its first
+        // launch after an update
+        for (int version = oldVersion; version < newVersion; version++) {
+            upgradeFrom(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Brings the schema from {@code version} to the one after it.  A schema change has to add
+     * its step here as well as change onCreate, and TestDbUpgrade checks that both end up the
+     * same.
+     */
+    private static void upgradeFrom(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // Locations tracked besides the preferred one, and the status of their syncs
+                db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_TRACKED + " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_SYNC_STATUS + " INTEGER");
+                db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                        LocationEntry.COLUMN_LAST_SYNC + " INTEGER");
+                break;
+            case 3:
+                db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+                db.execSQL(SQL_CREATE_LOCATION_TRACKED_INDEX);
+                break;
+            case 4:
+                // The coordinates become nullable, which SQLite can only do by copying the
+                // table.  The copy is renamed rather than the old table, which would take the
+                // weather table's foreign key along with it.
+                String newTable = LocationEntry.TABLE_NAME + "_new";
+                db.execSQL(createLocationTable(newTable));
+                db.execSQL("INSERT INTO " + newTable + " SELECT * FROM " +
+                        LocationEntry.TABLE_NAME);
+                db.execSQL("DROP TABLE " + LocationEntry.TABLE_NAME);
+                db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + LocationEntry.TABLE_NAME);
+                db.execSQL(SQL_CREATE_LOCATION_TRACKED_INDEX);
+                // Ids are kept, but a placeholder's made up coordinates are not
+                db.execSQL("UPDATE " + LocationEntry.TABLE_NAME + " SET " +
+                        LocationEntry.COLUMN_COORD_LAT + " = NULL, " +
+                        LocationEntry.COLUMN_COORD_LONG + " = NULL WHERE " +
+                        LocationEntry.COLUMN_CITY_NAME + " = " +
+                        LocationEntry.COLUMN_LOCATION_SETTING + " AND " +
+                        LocationEntry.COLUMN_COORD_LAT + " = 0 AND " +
+                        LocationEntry.COLUMN_COORD_LONG + " = 0");
+                break;
+            default:
+                throw new IllegalStateException("No upgrade from database version " + version);
+        }
     }
 }
@@ -17,23 +17,48 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    // Sync timings are only kept in memory, for as long as the process lives
+    private final SyncStageStats mSyncStageStats =
+            new SyncStageStats(WeatherContract.SyncStatsEntry.MAX_SAMPLES);
+    // Single days and forecasts from a date, dropped on every write
+    private final WeatherRowCache mRowCache = new WeatherRowCache();
+    private ChangeNotifier mNotifier;
+    // What the applyBatch running on this thread changed so far, if there is one
+    private final ThreadLocal<ChangeNotifier.Changes> mBatchChanges =
+            new ThreadLocal<ChangeNotifier.Changes>();
+    // Set when that applyBatch wrote to the location table in a way that affects its ids
+    private final ThreadLocal<Boolean> mBatchInvalidatesLocationIds = new ThreadLocal<Boolean>();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_STATS = 500;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -68,44 +93,270 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    // The values compared when merging a row into the stored one
+    private static final String[] MERGE_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_MERGE_SHORT_DESC = 0;
+    private static final int INDEX_MERGE_WEATHER_ID = 1;
+    private static final int INDEX_MERGE_MIN_TEMP = 2;
+    private static final int INDEX_MERGE_MAX_TEMP = 3;
+    private static final int INDEX_MERGE_HUMIDITY = 4;
+    private static final int INDEX_MERGE_PRESSURE = 5;
+    private static final int INDEX_MERGE_WIND_SPEED = 6;
+    private static final int INDEX_MERGE_DEGREES = 7;
+
+    // What METHOD_CURRENT_CONDITIONS returns
+    private static final String[] CURRENT_CONDITIONS_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_CURRENT_DATE = 0;
+    private static final int INDEX_CURRENT_WEATHER_ID = 1;
+    private static final int INDEX_CURRENT_MAX_TEMP = 2;
+    private static final int INDEX_CURRENT_MIN_TEMP = 3;
+    private static final int INDEX_CURRENT_SHORT_DESC = 4;
+
+    // What an upsert needs to know about the stored location
+    private static final String[] UPSERT_PROJECTION = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    private static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    // What a forecast read needs to know about its location when it doesn't join the table
+    private static final String[] FORECAST_LOCATION_PROJECTION = {
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        return queryWeatherForLocation(uri, projection, sortOrder,
+                startDate == 0 ? null : Long.toString(startDate));
+    }
 
-        String[] selectionArgs;
-        String selection;
+    private Cursor getWeatherByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        return queryWeatherForLocation(uri, projection, sortOrder, Long.toString(date));
+    }
+
+    /**
+     * Reads the weather table alone by location id when the location is known and the
+     * projection only asks for location columns that {@link LocationIdCache} has, which is
+     * what the forecast list, the widgets and the watch ask for.  Anything else goes through
+     * the join.
+     */
+    private Cursor queryWeatherForLocation(Uri uri, String[] projection, String sortOrder,
+                                           String dateArg) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        String[] weatherOnlyProjection = getWeatherOnlyProjection(projection);
+        LocationIdCache.Entry location =
+                weatherOnlyProjection == null ? null : findLocation(locationSetting);
+
+        ArrayList<String> args = new ArrayList<String>();
+        String sql;
+        if (location != null) {
+            sql = buildWeatherOnlyQuery(uri, weatherOnlyProjection, sortOrder);
+            addLocationArgs(projection, locationSetting, location, args);
+            args.add(Long.toString(location.id));
+        } else {
+            sql = buildJoinQuery(uri, projection, sortOrder);
+            args.add(locationSetting);
+        }
+        if (dateArg != null) {
+            args.add(dateArg);
+        }
+        return mOpenHelper.getReadableDatabase().rawQuery(sql,
+                args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * @return the location from LocationIdCache, or read and cached, or null if there is no
+     * location with that setting.
+     */
+    private LocationIdCache.Entry findLocation(String locationSetting) {
+        LocationIdCache cache = LocationIdCache.getInstance();
+        LocationIdCache.Entry location = cache.find(locationSetting);
+        if (location != null) {
+            return location;
+        }
+        int generation = cache.getGeneration();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME, FORECAST_LOCATION_PROJECTION,
+                sLocationSettingSelection, new String[]{locationSetting}, null, null, null);
+        try {
+            // A location that hasn't been synced yet has no coordinates to cache, the join
+            // reads them as NULL
+            if (!cursor.moveToFirst() || cursor.isNull(2)) {
+                return null;
+            }
+            location = new LocationIdCache.Entry(cursor.getLong(0), cursor.getString(1),
+                    cursor.getDouble(2), cursor.getDouble(3));
+        } finally {
+            cursor.close();
+        }
+        cache.put(generation, locationSetting, location.id, location.cityName,
+                location.coordLat, location.coordLong);
+        return location;
+    }
+
+    /**
+     * @return the location column a projection column is, with any table name taken off, or
+     * null if it's a weather column.
+     */
+    private static String getLocationColumn(String column) {
+        String locationPrefix = WeatherContract.LocationEntry.TABLE_NAME + ".";
+        if (column.startsWith(locationPrefix)) {
+            return column.substring(locationPrefix.length());
+        }
+        if (column.equals(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                || column.equals(WeatherContract.LocationEntry.COLUMN_CITY_NAME)
+                || column.equals(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                || column.equals(WeatherContract.LocationEntry.COLUMN_COORD_LONG)
+                || column.equals(WeatherContract.LocationEntry.COLUMN_TRACKED)
+                || column.equals(WeatherContract.LocationEntry.COLUMN_SYNC_STATUS)
+                || column.equals(WeatherContract.LocationEntry.COLUMN_LAST_SYNC)) {
+            return column;
+        }
+        return null;
+    }
+
+    /**
+     * Turns a weather/* projection into one for the weather table alone, where the location
+     * columns it asks for are bound as parameters ahead of the selection's.
+     * @return the projection, or null if it asks for a location column that isn't cached
+     */
+    private static String[] getWeatherOnlyProjection(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        String[] weatherOnly = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String locationColumn = getLocationColumn(projection[i]);
+            if (locationColumn == null) {
+                weatherOnly[i] = projection[i];
+            } else if (locationColumn.equals(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                    || locationColumn.equals(WeatherContract.LocationEntry.COLUMN_CITY_NAME)) {
+                weatherOnly[i] = "? AS " + locationColumn;
+            } else if (locationColumn.equals(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                    || locationColumn.equals(WeatherContract.LocationEntry.COLUMN_COORD_LONG)) {
+                // Parameters are bound as text, the join would return them as numbers
+                weatherOnly[i] = "CAST(? AS REAL) AS " + locationColumn;
+            } else {
+                return null;
+            }
+        }
+        return weatherOnly;
+    }
+
+    private static void addLocationArgs(String[] projection, String locationSetting,
+                                        LocationIdCache.Entry location, ArrayList<String> args) {
+        for (String column : projection) {
+            String locationColumn = getLocationColumn(column);
+            if (WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING.equals(locationColumn)) {
+                args.add(locationSetting);
+            } else if (WeatherContract.LocationEntry.COLUMN_CITY_NAME.equals(locationColumn)) {
+                args.add(location.cityName);
+            } else if (WeatherContract.LocationEntry.COLUMN_COORD_LAT.equals(locationColumn)) {
+                args.add(Double.toString(location.coordLat));
+            } else if (WeatherContract.LocationEntry.COLUMN_COORD_LONG.equals(locationColumn)) {
+                args.add(Double.toString(location.coordLong));
+            }
+        }
+    }
 
-        if (startDate == 0) {
+    // Also used by TestQueryPlans to compare against
+    static String buildJoinQuery(Uri uri, String[] projection, String sortOrder) {
+        String selection;
+        if (sUriMatcher.match(uri) == WEATHER_WITH_LOCATION_AND_DATE) {
+            selection = sLocationSettingAndDaySelection;
+        } else if (WeatherContract.WeatherEntry.getStartDateFromUri(uri) == 0) {
             selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
             selection = sLocationSettingWithStartDateSelection;
         }
-
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+        return SQLiteQueryBuilder.buildQueryString(false,
+                sWeatherByLocationSettingQueryBuilder.getTables(), projection, selection,
+                null, null, sortOrder, null);
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+    private static String buildWeatherOnlyQuery(Uri uri, String[] weatherOnlyProjection,
+                                                String sortOrder) {
+        String selection;
+        if (sUriMatcher.match(uri) == WEATHER_WITH_LOCATION_AND_DATE) {
+            selection = sLocationIdAndDateSelection;
+        } else if (WeatherContract.WeatherEntry.getStartDateFromUri(uri) == 0) {
+            selection = sLocationIdSelection;
+        } else {
+            selection = sLocationIdWithStartDateSelection;
+        }
+        return SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.WeatherEntry.TABLE_NAME, weatherOnlyProjection, selection,
+                null, null, sortOrder, null);
+    }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+    /**
+     * Builds the SELECT that query() runs for a uri, so that TestQueryPlans can check how
+     * SQLite executes every route.  The weather/* routes bring their own selection and ignore
+     * the one passed in, and are built the way they are read once their location is known.
+     * @return the SQL, or null for a route that isn't served from the database.
+     */
+    static String buildQuery(Uri uri, String[] projection, String selection, String sortOrder) {
+        switch (sUriMatcher.match(uri)) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+            case WEATHER_WITH_LOCATION: {
+                String[] weatherOnlyProjection = getWeatherOnlyProjection(projection);
+                if (weatherOnlyProjection == null) {
+                    return buildJoinQuery(uri, projection, sortOrder);
+                }
+                return buildWeatherOnlyQuery(uri, weatherOnlyProjection, sortOrder);
+            }
+            case WEATHER:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.WeatherEntry.TABLE_NAME, projection, selection, null, null,
+                        sortOrder, null);
+            case LOCATION:
+                return SQLiteQueryBuilder.buildQueryString(false,
+                        WeatherContract.LocationEntry.TABLE_NAME, projection, selection, null, null,
+                        sortOrder, null);
+            case SYNC_STATS:
+                return null;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
     }
 
     /*
@@ -130,6 +381,7 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_STATS, SYNC_STATS);
         return matcher;
     }
 
@@ -140,6 +392,7 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mNotifier = new ChangeNotifier(getContext().getContentResolver());
         return true;
     }
 
@@ -164,6 +417,8 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_STATS:
+                return WeatherContract.SyncStatsEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -179,12 +434,29 @@ public class WeatherProvider extends ContentProvider {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                String key = WeatherRowCache.getKey(uri, projection, sortOrder);
+                retCursor = mRowCache.get(key);
+                if (retCursor == null) {
+                    int generation = mRowCache.getGeneration();
+                    retCursor = mRowCache.put(generation, key,
+                            getWeatherByLocationSettingAndDate(uri, projection, sortOrder));
+                }
                 break;
             }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                // Only a forecast from a date on is short enough to cache
+                if (WeatherContract.WeatherEntry.getStartDateFromUri(uri) == 0) {
+                    retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                    break;
+                }
+                String key = WeatherRowCache.getKey(uri, projection, sortOrder);
+                retCursor = mRowCache.get(key);
+                if (retCursor == null) {
+                    int generation = mRowCache.getGeneration();
+                    retCursor = mRowCache.put(generation, key,
+                            getWeatherByLocationSetting(uri, projection, sortOrder));
+                }
                 break;
             }
             // "weather"
@@ -213,6 +485,11 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_stats"
+            case SYNC_STATS: {
+                retCursor = mSyncStageStats.query();
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -229,6 +506,7 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
 
         switch (match) {
             case WEATHER: {
@@ -238,6 +516,10 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                addWeatherChanges(db, changes,
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        Collections.singletonList(
+                                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
                 break;
             }
             case LOCATION: {
@@ -246,12 +528,19 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                changes.add(uri);
                 break;
             }
+            case SYNC_STATS: {
+                // Samples aren't rows of their own, nor is anyone watching them being added
+                mSyncStageStats.add(values);
+                return uri;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        mRowCache.invalidate();
+        notifyChange(changes);
         return returnUri;
     }
 
@@ -270,13 +559,18 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                invalidateLocationIds();
+                break;
+            case SYNC_STATS:
+                rowsDeleted = mSyncStageStats.clear();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mRowCache.invalidate();
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -305,41 +599,492 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                // Sync statuses and tracking change all the time and don't affect the cache
+                if (values.containsKey(WeatherContract.LocationEntry._ID)
+                        || values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                        || values.containsKey(WeatherContract.LocationEntry.COLUMN_CITY_NAME)
+                        || values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                        || values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LONG)) {
+                    invalidateLocationIds();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mRowCache.invalidate();
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
+                // A row that can't be written is skipped, as it was when every row went
+                // through SQLiteDatabase.insert, rather than failing the others
+                return insertWeather(WeatherRows.fromCompleteContentValues(values));
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    /**
+     * Runs the whole batch in one transaction, so a sync's mixed inserts, updates and deletes
+     * across both tables are written at once and are either all kept or all rolled back.
+     * Observers hear about what the batch changed after the commit, along with anything else
+     * {@link ChangeNotifier} holds, instead of once per operation while it runs.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
+        ContentProviderResult[] results;
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.set(null);
+            if (mBatchInvalidatesLocationIds.get() != null) {
+                mBatchInvalidatesLocationIds.remove();
+                LocationIdCache.getInstance().invalidate();
+            }
+        }
+        if (!changes.isEmpty()) {
+            // Reads racing with the batch may have cached rows from before the commit
+            mRowCache.invalidate();
+            mNotifier.post(changes);
+        }
+        return results;
+    }
+
+    /**
+     * Drops the cached location ids, and within an applyBatch drops them again once it is
+     * over: until the batch commits, reads on other connections still see the old rows and
+     * could cache them again.
+     */
+    private void invalidateLocationIds() {
+        LocationIdCache.getInstance().invalidate();
+        if (mBatchChanges.get() != null) {
+            mBatchInvalidatesLocationIds.set(Boolean.TRUE);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
+        changes.add(uri);
+        notifyChange(changes);
+    }
+
+    /**
+     * Notifies observers of a single write right away, or if it is part of an applyBatch keeps
+     * the changes until it commits.
+     */
+    private void notifyChange(ChangeNotifier.Changes changes) {
+        ChangeNotifier.Changes batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.addAll(changes);
+        } else {
+            mNotifier.send(changes);
+        }
+    }
+
+    /**
+     * Like {@link #notifyChange(ChangeNotifier.Changes)}, but for the sync's bulk writes, whose
+     * changes {@link ChangeNotifier} holds back to send along with the sync's other writes.
+     */
+    private void postChange(ChangeNotifier.Changes changes) {
+        ChangeNotifier.Changes batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.addAll(changes);
+        } else {
+            mNotifier.post(changes);
+        }
+    }
+
+    /**
+     * Adds the days written for a location, or the whole weather table if the location can't
+     * be found.
+     */
+    private static void addWeatherChanges(SQLiteDatabase db, ChangeNotifier.Changes changes,
+                                          Long locationId, List<Long> dates) {
+        String locationSetting = locationId == null ? null : getLocationSetting(db, locationId);
+        if (locationSetting == null) {
+            changes.add(WeatherContract.WeatherEntry.CONTENT_URI);
+            return;
+        }
+        for (Long date : dates) {
+            if (date == null) {
+                changes.add(WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+            } else {
+                changes.addWeather(locationSetting, date);
+            }
+        }
+    }
+
+    private static void addWeatherChanges(SQLiteDatabase db, ChangeNotifier.Changes changes,
+                                          Map<Long, ArrayList<Long>> changedDates) {
+        for (Map.Entry<Long, ArrayList<Long>> entry : changedDates.entrySet()) {
+            addWeatherChanges(db, changes, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Records that a row was written for the location and date.
+     */
+    private static void addChangedDate(HashMap<Long, ArrayList<Long>> changedDates,
+                                       long locationId, long date) {
+        ArrayList<Long> dates = changedDates.get(locationId);
+        if (dates == null) {
+            dates = new ArrayList<Long>();
+            changedDates.put(locationId, dates);
+        }
+        dates.add(date);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_CHECKPOINT.equals(method)) {
+            Bundle result = new Bundle();
+            int[] frames = mOpenHelper.checkpoint(mOpenHelper.getWritableDatabase());
+            if (frames != null) {
+                result.putInt(WeatherContract.EXTRA_LOG_FRAMES, frames[0]);
+                result.putInt(WeatherContract.EXTRA_CHECKPOINTED_FRAMES, frames[1]);
+            }
+            return result;
+        } else if (WeatherContract.LocationEntry.METHOD_UPSERT.equals(method)) {
+            return upsertLocation(extras);
+        } else if (WeatherContract.WeatherEntry.METHOD_CURRENT_CONDITIONS.equals(method)) {
+            long date = extras != null
+                    && extras.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)
+                    ? extras.getLong(WeatherContract.WeatherEntry.COLUMN_DATE)
+                    : System.currentTimeMillis();
+            return getCurrentConditions(arg, WeatherContract.normalizeDate(date));
+        } else if (WeatherContract.WeatherEntry.METHOD_MERGE.equals(method)) {
+            return mergeWeather(getWeatherRows(extras));
+        } else if (WeatherContract.WeatherEntry.METHOD_BULK_INSERT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.WeatherEntry.EXTRA_INSERTED,
+                    insertWeather(getWeatherRows(extras)));
+            return result;
+        } else if (WeatherContract.SyncStatsEntry.METHOD_HTTP_CACHE_STATS.equals(method)) {
+            return getHttpCacheStats();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Reads the counters the sync adapter's forecast HTTP cache keeps in its preferences file.
+     */
+    private Bundle getHttpCacheStats() {
+        SharedPreferences stats = getContext().getSharedPreferences(
+                WeatherContract.SyncStatsEntry.HTTP_CACHE_PREFS_NAME, Context.MODE_PRIVATE);
+        Bundle result = new Bundle();
+        for (String key : new String[]{WeatherContract.SyncStatsEntry.EXTRA_CACHE_HITS,
+                WeatherContract.SyncStatsEntry.EXTRA_CACHE_NOT_MODIFIED,
+                WeatherContract.SyncStatsEntry.EXTRA_CACHE_MISSES}) {
+            result.putLong(key, stats.getLong(key, 0));
+        }
+        return result;
+    }
+
+    /**
+     * Answers METHOD_CURRENT_CONDITIONS from mRowCache, or from a single row query by location
+     * id.  Unlike going through query(), a caller gets no cursor and no cursor window, and in
+     * between writes nothing is read from the database at all.
+     */
+    private Bundle getCurrentConditions(String locationSetting, long date) {
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Current conditions without a location");
+        }
+        String key = WeatherContract.WeatherEntry.METHOD_CURRENT_CONDITIONS + "|" +
+                locationSetting + "|" + date;
+        Bundle result = mRowCache.getBundle(key);
+        if (result != null) {
+            return result;
+        }
+        int generation = mRowCache.getGeneration();
+        result = new Bundle();
+        LocationIdCache.Entry location = findLocation(locationSetting);
+        if (location != null) {
+            Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME, CURRENT_CONDITIONS_PROJECTION,
+                    sLocationIdWithStartDateSelection,
+                    new String[]{Long.toString(location.id), Long.toString(date)},
+                    null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC", "1");
+            try {
+                if (cursor.moveToFirst()) {
+                    result.putLong(WeatherContract.WeatherEntry.COLUMN_DATE,
+                            cursor.getLong(INDEX_CURRENT_DATE));
+                    result.putInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                            cursor.getInt(INDEX_CURRENT_WEATHER_ID));
+                    result.putDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                            cursor.getDouble(INDEX_CURRENT_MAX_TEMP));
+                    result.putDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                            cursor.getDouble(INDEX_CURRENT_MIN_TEMP));
+                    result.putString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                            cursor.getString(INDEX_CURRENT_SHORT_DESC));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mRowCache.putBundle(generation, key, result);
+        return result;
+    }
+
+    /**
+     * Looks the location up and inserts or updates it within one transaction, so that two
+     * syncs of the same new location can't both insert it.  The result goes into
+     * {@link LocationIdCache}, which lets later syncs skip calling this at all.
+     */
+    private Bundle upsertLocation(Bundle extras) {
+        String locationSetting =
+                extras.getString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        String cityName = extras.getString(WeatherContract.LocationEntry.COLUMN_CITY_NAME);
+        if (locationSetting == null || cityName == null) {
+            throw new IllegalArgumentException("Location upsert without setting or city: " + extras);
+        }
+        double coordLat = extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        double coordLong = extras.getDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, coordLat);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, coordLong);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        LocationIdCache cache = LocationIdCache.getInstance();
+        int generation = cache.getGeneration();
+        long locationId;
+        boolean changed = false;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME, UPSERT_PROJECTION,
+                    sLocationSettingSelection, new String[]{locationSetting}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    locationId = cursor.getLong(0);
+                    // A location tracked before its first sync only has a placeholder name,
+                    // and no coordinates
+                    if (!cityName.equals(cursor.getString(1)) || cursor.isNull(2)) {
+                        db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                                WeatherContract.LocationEntry._ID + " = ?",
+                                new String[]{Long.toString(locationId)});
+                        changed = true;
+                    } else {
+                        // What gets cached has to be what reads would get from the table
+                        coordLat = cursor.getDouble(2);
+                        coordLong = cursor.getDouble(3);
+                    }
+                } else {
+                    values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+                    locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    if (locationId == -1) {
+                        throw new android.database.SQLException("Failed to insert location " + locationSetting);
+                    }
+                    changed = true;
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        cache.put(generation, locationSetting, locationId, cityName, coordLat, coordLong);
+        if (changed) {
+            mRowCache.invalidate();
+            // Only syncs upsert, and the forecast they write next is held back as well
+            ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
+            changes.add(WeatherContract.LocationEntry.CONTENT_URI);
+            postChange(changes);
+        }
+        Bundle result = new Bundle();
+        result.putLong(WeatherContract.LocationEntry.EXTRA_LOCATION_ID, locationId);
+        return result;
+    }
+
+    /**
+     * The weather rows of a call() either come as a ContentValues array in EXTRA_VALUES, or as
+     * the columns of a {@link WeatherRows}.
+     */
+    private static WeatherRows getWeatherRows(Bundle extras) {
+        if (extras.containsKey(WeatherContract.WeatherEntry.EXTRA_VALUES)) {
+            Parcelable[] parcels = extras.getParcelableArray(WeatherContract.WeatherEntry.EXTRA_VALUES);
+            ContentValues[] values = new ContentValues[parcels.length];
+            System.arraycopy(parcels, 0, values, 0, parcels.length);
+            return WeatherRows.fromContentValues(values);
+        }
+        WeatherRows rows = WeatherRows.fromBundle(extras);
+        if (rows == null) {
+            throw new IllegalArgumentException("No weather rows in " + extras);
+        }
+        return rows;
+    }
+
+    /**
+     * Cancelling a sync interrupts its thread, and in this process that is also the thread
+     * running the provider.  Writes check between rows and roll back instead of finishing.
+     */
+    private static boolean isWriteCancelled() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Observers are told about the locations and dates written, like for a merge.
+     * @return how many rows were inserted, 0 if the transaction was rolled back because the
+     * writing thread was interrupted.
+     */
+    private int insertWeather(WeatherRows rows) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount = 0;
+        // location id -> dates of the rows that were written for it
+        HashMap<Long, ArrayList<Long>> changedDates = new HashMap<Long, ArrayList<Long>>();
+        db.beginTransaction();
+        WeatherBatchWriter writer = new WeatherBatchWriter(db);
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                if (isWriteCancelled()) {
+                    return 0;
+                }
+                rows.setDate(i, WeatherContract.normalizeDate(rows.getDate(i)));
+                if (writer.insert(rows, i) != -1) {
+                    returnCount++;
+                    addChangedDate(changedDates, rows.getLocationId(i), rows.getDate(i));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            db.endTransaction();
+        }
+        if (returnCount > 0) {
+            mRowCache.invalidate();
+            ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
+            addWeatherChanges(db, changes, changedDates);
+            postChange(changes);
+        }
+        return returnCount;
+    }
+
+    /**
+     * Compares each incoming row with the one stored for the same location and date, and only
+     * writes the rows that are new or have different values.  Observers are told about the
+     * locations and dates of the rows that were written, not the whole weather table, so an
+     * unchanged forecast doesn't make every loader reload.  If the writing thread is interrupted
+     * everything is rolled back, and the counts come back as 0.
+     */
+    private Bundle mergeWeather(WeatherRows rows) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        // location id -> dates of the rows that were written for it
+        HashMap<Long, ArrayList<Long>> changedDates = new HashMap<Long, ArrayList<Long>>();
+
+        db.beginTransaction();
+        WeatherBatchWriter writer = new WeatherBatchWriter(db);
+        try {
+            String[] rowArgs = new String[2];
+            for (int i = 0; i < rows.size(); i++) {
+                if (isWriteCancelled()) {
+                    return new Bundle();
+                }
+                rows.setDate(i, WeatherContract.normalizeDate(rows.getDate(i)));
+                long locationId = rows.getLocationId(i);
+                long date = rows.getDate(i);
+                rowArgs[0] = Long.toString(locationId);
+                rowArgs[1] = Long.toString(date);
+
+                Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                        MERGE_PROJECTION, sLocationIdAndDateSelection, rowArgs, null, null, null);
                 try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                    if (!cursor.moveToFirst()) {
+                        if (writer.insert(rows, i) == -1) {
+                            continue;
                         }
+                        inserted++;
+                    } else if (!matchesRow(cursor, rows, i)) {
+                        writer.update(rows, i);
+                        updated++;
+                    } else {
+                        unchanged++;
+                        continue;
                     }
-                    db.setTransactionSuccessful();
                 } finally {
-                    db.endTransaction();
+                    cursor.close();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
-            default:
-                return super.bulkInsert(uri, values);
+
+                addChangedDate(changedDates, locationId, date);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            writer.close();
+            db.endTransaction();
+        }
+
+        // An unchanged forecast leaves the cache and the observers as they were
+        if (!changedDates.isEmpty()) {
+            mRowCache.invalidate();
+            ChangeNotifier.Changes changes = new ChangeNotifier.Changes();
+            addWeatherChanges(db, changes, changedDates);
+            postChange(changes);
         }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_INSERTED, inserted);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UPDATED, updated);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED, unchanged);
+        return result;
+    }
+
+    /**
+     * @return true if the cursor's row, read with {@link #MERGE_PROJECTION}, holds the same
+     * values as the given row.
+     */
+    private static boolean matchesRow(Cursor cursor, WeatherRows rows, int row) {
+        return rows.getShortDesc(row).equals(cursor.getString(INDEX_MERGE_SHORT_DESC))
+                && rows.getWeatherId(row) == cursor.getInt(INDEX_MERGE_WEATHER_ID)
+                && rows.getMinTemp(row) == cursor.getDouble(INDEX_MERGE_MIN_TEMP)
+                && rows.getMaxTemp(row) == cursor.getDouble(INDEX_MERGE_MAX_TEMP)
+                && rows.getHumidity(row) == cursor.getDouble(INDEX_MERGE_HUMIDITY)
+                && rows.getPressure(row) == cursor.getDouble(INDEX_MERGE_PRESSURE)
+                && rows.getWindSpeed(row) == cursor.getDouble(INDEX_MERGE_WIND_SPEED)
+                && rows.getDegrees(row) == cursor.getDouble(INDEX_MERGE_DEGREES);
+    }
+
+    private static String getLocationSetting(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * For tests checking what is served from memory.
+     */
+    WeatherRowCache getRowCache() {
+        return mRowCache;
+    }
+
+    /**
+     * For tests counting the notifications sent.
+     */
+    ChangeNotifier getNotifier() {
+        return mNotifier;
     }
 
     // You do not need to call this method. This is a method specifically to assist the testing
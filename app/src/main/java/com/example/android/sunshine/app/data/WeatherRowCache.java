@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the provider's most repeated reads kept in memory: a location's single day, and
+ * its forecast from a date on.  Between syncs the notifications, widgets, Muzei, the watch and
+ * the detail screen keep asking for the same few of those.
+ *
+ * A result is copied out of its SQLite cursor into plain arrays once, and every hit gets a
+ * light cursor over the arrays instead of a query and a new cursor window.  The current
+ * conditions answered by call() are kept the same way, as the Bundles handed out.  Any write
+ * through the provider drops everything cached, writes made around the provider aren't seen.
+ */
+final class WeatherRowCache {
+
+    // Enough for today and the forecast of several locations, in a few projections each
+    static final int MAX_ENTRIES = 32;
+    // A forecast from today on fits, longer ranges are read from the database every time
+    static final int MAX_ROWS = 20;
+
+    private static final class Rows {
+        final String[] columnNames;
+        // Long, Real, String, byte[] or null, like the column types of SQLite
+        final Object[][] values;
+
+        Rows(String[] columnNames, Object[][] values) {
+            this.columnNames = columnNames;
+            this.values = values;
+        }
+    }
+
+    // A REAL value with the text SQLite gave for it, which Double.toString doesn't always match
+    private static final class Real {
+        final double value;
+        final String text;
+
+        Real(double value, String text) {
+            this.value = value;
+            this.text = text;
+        }
+    }
+
+    private final Map<String, Rows> mEntries =
+            new LinkedHashMap<String, Rows>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Rows> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private final Map<String, Bundle> mBundles =
+            new LinkedHashMap<String, Bundle>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bundle> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Bumped on every invalidation, so a read that raced with a write doesn't cache old rows
+    private int mGeneration;
+    private int mHitCount;
+    private int mMissCount;
+
+    static String getKey(Uri uri, String[] projection, String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString()).append('|');
+        if (projection != null) {
+            for (String column : projection) {
+                key.append(column).append(',');
+            }
+        }
+        return key.append('|').append(sortOrder).toString();
+    }
+
+    /**
+     * @return a cursor over the cached rows, or null if they aren't cached.
+     */
+    synchronized Cursor get(String key) {
+        Rows rows = mEntries.get(key);
+        if (rows == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new RowsCursor(rows);
+    }
+
+    /**
+     * @return a copy of the cached Bundle, or null if it isn't cached.
+     */
+    synchronized Bundle getBundle(String key) {
+        Bundle bundle = mBundles.get(key);
+        if (bundle == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new Bundle(bundle);
+    }
+
+    /**
+     * Caches a copy of a Bundle read after {@code generation} was, unless the cache was
+     * invalidated in between.
+     */
+    synchronized void putBundle(int generation, String key, Bundle bundle) {
+        if (generation == mGeneration) {
+            mBundles.put(key, new Bundle(bundle));
+        }
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the rows of a cursor that was read after {@code generation} was, unless the cache
+     * was invalidated in between.  Cursors with more than MAX_ROWS rows are left as they are,
+     * and so is everything before API level 11, which can't tell the types of a cursor's values.
+     * @return the cursor to hand out in place of {@code cursor}, which may have been closed.
+     */
+    Cursor put(int generation, String key, Cursor cursor) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        Rows rows;
+        try {
+            rows = copyRows(cursor);
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, rows);
+            }
+        }
+        return new RowsCursor(rows);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Rows copyRows(Cursor cursor) {
+        int columnCount = cursor.getColumnCount();
+        Object[][] values = new Object[cursor.getCount()][columnCount];
+        for (int row = 0; cursor.moveToNext(); row++) {
+            for (int column = 0; column < columnCount; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[row][column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[row][column] =
+                                new Real(cursor.getDouble(column), cursor.getString(column));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        values[row][column] = cursor.getString(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[row][column] = cursor.getBlob(column);
+                        break;
+                    default:
+                        values[row][column] = null;
+                }
+            }
+        }
+        return new Rows(cursor.getColumnNames(), values);
+    }
+
+    synchronized void invalidate() {
+        mEntries.clear();
+        mBundles.clear();
+        mGeneration++;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the share of reads of the cached routes that were hits, 0 before any.
+     */
+    synchronized double getHitRate() {
+        int reads = mHitCount + mMissCount;
+        return reads == 0 ? 0 : (double) mHitCount / reads;
+    }
+
+    /**
+     * Reads the shared, never modified rows of an entry.  Values convert between types the way
+     * SQLite's cursors convert them, as far as the callers of these routes need.
+     */
+    private static final class RowsCursor extends AbstractCursor {
+        private final Rows mRows;
+
+        RowsCursor(Rows rows) {
+            mRows = rows;
+        }
+
+        private Object get(int column) {
+            return mRows.values[getPosition()][column];
+        }
+
+        private Number getNumber(int column) {
+            Object value = get(column);
+            if (value instanceof Real) {
+                return ((Real) value).value;
+            }
+            if (value instanceof Number) {
+                return (Number) value;
+            }
+            if (value instanceof String) {
+                try {
+                    return Double.valueOf((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.values.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mRows.columnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof Real) {
+                return ((Real) value).text;
+            }
+            return value instanceof byte[] ? new String((byte[]) value) : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return getNumber(column).shortValue();
+        }
+
+        @Override
+        public int getInt(int column) {
+            return getNumber(column).intValue();
+        }
+
+        @Override
+        public long getLong(int column) {
+            return getNumber(column).longValue();
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getNumber(column).floatValue();
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getNumber(column).doubleValue();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            return getString(column).getBytes();
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Real) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof String) {
+                return FIELD_TYPE_STRING;
+            }
+            return FIELD_TYPE_BLOB;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
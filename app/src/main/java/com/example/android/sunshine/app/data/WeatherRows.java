@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * A block of weather rows kept column by column in primitive arrays.
+ *
+ * This is what the sync adapter hands to {@link WeatherProvider} instead of a ContentValues
+ * array: there is no per row map and no boxing, and the arrays travel in a Bundle through
+ * {@link android.content.ContentResolver#call} as they are.
+ */
+public final class WeatherRows {
+    private static final String KEY_SIZE = "size";
+
+    private int mSize;
+    private long[] mLocationIds;
+    private long[] mDates;
+    private String[] mShortDescs;
+    private int[] mWeatherIds;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    public WeatherRows(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mLocationIds = new long[capacity];
+        mDates = new long[capacity];
+        mShortDescs = new String[capacity];
+        mWeatherIds = new int[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * Appends a row, growing the arrays if needed.
+     */
+    public void add(long locationId, long date, String shortDesc, int weatherId,
+                    double minTemp, double maxTemp, double humidity, double pressure,
+                    double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow(mSize * 2);
+        }
+        mLocationIds[mSize] = locationId;
+        mDates[mSize] = date;
+        mShortDescs[mSize] = shortDesc;
+        mWeatherIds[mSize] = weatherId;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    /**
+     * Points every row at {@code locationId}, for when the location is only known once the rows
+     * have been collected.
+     */
+    public void setLocationId(long locationId) {
+        Arrays.fill(mLocationIds, 0, mSize, locationId);
+    }
+
+    public void clear() {
+        Arrays.fill(mShortDescs, 0, mSize, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getLocationId(int row) {
+        return mLocationIds[row];
+    }
+
+    public long getDate(int row) {
+        return mDates[row];
+    }
+
+    void setDate(int row, long date) {
+        mDates[row] = date;
+    }
+
+    public String getShortDesc(int row) {
+        return mShortDescs[row];
+    }
+
+    public int getWeatherId(int row) {
+        return mWeatherIds[row];
+    }
+
+    public double getMinTemp(int row) {
+        return mMinTemps[row];
+    }
+
+    public double getMaxTemp(int row) {
+        return mMaxTemps[row];
+    }
+
+    public double getHumidity(int row) {
+        return mHumidities[row];
+    }
+
+    public double getPressure(int row) {
+        return mPressures[row];
+    }
+
+    public double getWindSpeed(int row) {
+        return mWindSpeeds[row];
+    }
+
+    public double getDegrees(int row) {
+        return mDegrees[row];
+    }
+
+    private void grow(int capacity) {
+        mLocationIds = Arrays.copyOf(mLocationIds, capacity);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mShortDescs = Arrays.copyOf(mShortDescs, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+
+    /**
+     * Packs the rows into a Bundle, one array per column keyed by the column name.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_SIZE, mSize);
+        bundle.putLongArray(WeatherEntry.COLUMN_LOC_KEY, Arrays.copyOf(mLocationIds, mSize));
+        bundle.putLongArray(WeatherEntry.COLUMN_DATE, Arrays.copyOf(mDates, mSize));
+        bundle.putStringArray(WeatherEntry.COLUMN_SHORT_DESC, Arrays.copyOf(mShortDescs, mSize));
+        bundle.putIntArray(WeatherEntry.COLUMN_WEATHER_ID, Arrays.copyOf(mWeatherIds, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_MIN_TEMP, Arrays.copyOf(mMinTemps, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_MAX_TEMP, Arrays.copyOf(mMaxTemps, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_HUMIDITY, Arrays.copyOf(mHumidities, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_PRESSURE, Arrays.copyOf(mPressures, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_WIND_SPEED, Arrays.copyOf(mWindSpeeds, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_DEGREES, Arrays.copyOf(mDegrees, mSize));
+        return bundle;
+    }
+
+    /**
+     * @return the rows packed by {@link #toBundle()}, or null if the Bundle doesn't hold any.
+     */
+    public static WeatherRows fromBundle(Bundle bundle) {
+        if (bundle == null || !bundle.containsKey(KEY_SIZE)) {
+            return null;
+        }
+        WeatherRows rows = new WeatherRows(0);
+        rows.mSize = bundle.getInt(KEY_SIZE);
+        rows.mLocationIds = bundle.getLongArray(WeatherEntry.COLUMN_LOC_KEY);
+        rows.mDates = bundle.getLongArray(WeatherEntry.COLUMN_DATE);
+        rows.mShortDescs = bundle.getStringArray(WeatherEntry.COLUMN_SHORT_DESC);
+        rows.mWeatherIds = bundle.getIntArray(WeatherEntry.COLUMN_WEATHER_ID);
+        rows.mMinTemps = bundle.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP);
+        rows.mMaxTemps = bundle.getDoubleArray(WeatherEntry.COLUMN_MAX_TEMP);
+        rows.mHumidities = bundle.getDoubleArray(WeatherEntry.COLUMN_HUMIDITY);
+        rows.mPressures = bundle.getDoubleArray(WeatherEntry.COLUMN_PRESSURE);
+        rows.mWindSpeeds = bundle.getDoubleArray(WeatherEntry.COLUMN_WIND_SPEED);
+        rows.mDegrees = bundle.getDoubleArray(WeatherEntry.COLUMN_DEGREES);
+        return rows;
+    }
+
+    /**
+     * Converts weather rows from their ContentValues form.
+     * @throws IllegalArgumentException if a row is missing one of the weather columns, since
+     * they are all NOT NULL.
+     */
+    public static WeatherRows fromContentValues(ContentValues[] values) {
+        WeatherRows rows = new WeatherRows(values.length);
+        for (ContentValues value : values) {
+            rows.add(value);
+        }
+        return rows;
+    }
+
+    /**
+     * Like {@link #fromContentValues}, but leaves out the rows missing one of the weather
+     * columns instead of failing all of them, the way inserting them one by one would.
+     */
+    public static WeatherRows fromCompleteContentValues(ContentValues[] values) {
+        WeatherRows rows = new WeatherRows(values.length);
+        for (ContentValues value : values) {
+            try {
+                rows.add(value);
+            } catch (IllegalArgumentException e) {
+                // Nothing was added for it, the columns are all read before adding
+            }
+        }
+        return rows;
+    }
+
+    private void add(ContentValues value) {
+        add(getLong(value, WeatherEntry.COLUMN_LOC_KEY),
+                getLong(value, WeatherEntry.COLUMN_DATE),
+                getString(value, WeatherEntry.COLUMN_SHORT_DESC),
+                (int) getLong(value, WeatherEntry.COLUMN_WEATHER_ID),
+                getDouble(value, WeatherEntry.COLUMN_MIN_TEMP),
+                getDouble(value, WeatherEntry.COLUMN_MAX_TEMP),
+                getDouble(value, WeatherEntry.COLUMN_HUMIDITY),
+                getDouble(value, WeatherEntry.COLUMN_PRESSURE),
+                getDouble(value, WeatherEntry.COLUMN_WIND_SPEED),
+                getDouble(value, WeatherEntry.COLUMN_DEGREES));
+    }
+
+    private static long getLong(ContentValues values, String column) {
+        Long value = values.getAsLong(column);
+        if (value == null) {
+            throw new IllegalArgumentException("Weather row without " + column);
+        }
+        return value;
+    }
+
+    private static double getDouble(ContentValues values, String column) {
+        Double value = values.getAsDouble(column);
+        if (value == null) {
+            throw new IllegalArgumentException("Weather row without " + column);
+        }
+        return value;
+    }
+
+    private static String getString(ContentValues values, String column) {
+        String value = values.getAsString(column);
+        if (value == null) {
+            throw new IllegalArgumentException("Weather row without " + column);
+        }
+        return value;
+    }
+}
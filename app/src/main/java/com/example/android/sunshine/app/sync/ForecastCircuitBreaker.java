@@ -0,0 +1,194 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Keeps the sync adapter from hammering OpenWeatherMap while it is failing.
+ *
+ * The breaker starts closed and lets every request through.  After {@link #FAILURE_THRESHOLD}
+ * failures in a row it opens and refuses requests for an exponentially growing backoff, with
+ * random jitter so that devices don't all come back at once.  Once the backoff has passed it is
+ * half open: a single probe request goes through, and its outcome either closes the breaker again
+ * or reopens it with the next, longer backoff.
+ *
+ * The state is kept in its own SharedPreferences file, the sync process doesn't live long enough
+ * to keep it in memory.
+ */
+public class ForecastCircuitBreaker {
+    private static final String LOG_TAG = ForecastCircuitBreaker.class.getSimpleName();
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    static final String PREFS_NAME = "forecast_circuit_breaker";
+
+    // Failures in a row before the breaker opens, so that a single dropped connection doesn't
+    static final int FAILURE_THRESHOLD = 2;
+    static final long BASE_BACKOFF_MILLIS = 60 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 2 * 60 * 60 * 1000;
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "consecutive_failures";
+    private static final String KEY_RETRY_TIME = "retry_time";
+    private static final String KEY_OPENED_COUNT = "opened_count";
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom = new Random();
+    private final long mBaseBackoff;
+    private final long mMaxBackoff;
+
+    private int mState;
+    private int mFailures;
+    private long mRetryTime;
+    // Whether the half open probe has been let through and hasn't come back yet
+    private boolean mProbeInFlight;
+
+    public ForecastCircuitBreaker(Context context) {
+        this(context, BASE_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+    }
+
+    ForecastCircuitBreaker(Context context, long baseBackoff, long maxBackoff) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mBaseBackoff = baseBackoff;
+        mMaxBackoff = maxBackoff;
+        mState = mPrefs.getInt(KEY_STATE, STATE_CLOSED);
+        mFailures = mPrefs.getInt(KEY_FAILURES, 0);
+        mRetryTime = mPrefs.getLong(KEY_RETRY_TIME, 0);
+        if (mState == STATE_HALF_OPEN) {
+            // The probe died with the process that sent it, let the next one through
+            mState = STATE_OPEN;
+        }
+    }
+
+    /**
+     * @return true if a request may be sent now.  When this lets the half open probe through,
+     * the caller has to report back with {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onCancelled()}.
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case STATE_OPEN:
+                if (System.currentTimeMillis() < mRetryTime) {
+                    return false;
+                }
+                mState = STATE_HALF_OPEN;
+                mProbeInFlight = true;
+                save();
+                return true;
+            case STATE_HALF_OPEN:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Ends the backoff of an open breaker early, so the next request goes out as the probe.  For
+     * refreshes the user asked for, which may come right after they fixed a bad location.
+     */
+    public synchronized void allowProbeNow() {
+        if (mState == STATE_OPEN) {
+            mRetryTime = System.currentTimeMillis();
+            save();
+        }
+    }
+
+    /**
+     * The server answered, even if it was to say the location doesn't exist.
+     */
+    public synchronized void onSuccess() {
+        if (mState != STATE_CLOSED) {
+            Log.d(LOG_TAG, "Server is back, closing after " + mFailures + " failures");
+        }
+        mState = STATE_CLOSED;
+        mFailures = 0;
+        mRetryTime = 0;
+        mProbeInFlight = false;
+        save();
+    }
+
+    /**
+     * The request was abandoned before the server could be judged.  Lets the next request be
+     * the probe if this one was.
+     */
+    public synchronized void onCancelled() {
+        mProbeInFlight = false;
+    }
+
+    /**
+     * The request failed or the server answered with an error.
+     */
+    public synchronized void onFailure() {
+        mFailures++;
+        mProbeInFlight = false;
+        if (mState == STATE_HALF_OPEN || mFailures >= FAILURE_THRESHOLD) {
+            // Double the backoff for every failure past the threshold, then take a random
+            // point in its upper half
+            int doublings = Math.min(Math.max(mFailures - FAILURE_THRESHOLD, 0), 30);
+            long backoff = Math.min(mMaxBackoff, mBaseBackoff << doublings);
+            long jittered = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+            mRetryTime = System.currentTimeMillis() + jittered;
+            if (mState != STATE_OPEN) {
+                mPrefs.edit().putInt(KEY_OPENED_COUNT, getOpenedCount() + 1).apply();
+            }
+            mState = STATE_OPEN;
+            Log.d(LOG_TAG, "Open for " + jittered + "ms after " + mFailures + " failures");
+        }
+        save();
+    }
+
+    /**
+     * @return true while requests are being refused.
+     */
+    public synchronized boolean isOpen() {
+        return mState == STATE_OPEN && System.currentTimeMillis() < mRetryTime
+                || mState == STATE_HALF_OPEN && mProbeInFlight;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * @return when, in milliseconds since the epoch, the breaker lets a probe through again.
+     */
+    public synchronized long getRetryTime() {
+        return mRetryTime;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return how many times the breaker has opened since it was last reset.
+     */
+    public int getOpenedCount() {
+        return mPrefs.getInt(KEY_OPENED_COUNT, 0);
+    }
+
+    public synchronized void reset() {
+        mState = STATE_CLOSED;
+        mFailures = 0;
+        mRetryTime = 0;
+        mProbeInFlight = false;
+        mPrefs.edit().clear().apply();
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putInt(KEY_STATE, mState)
+                .putInt(KEY_FAILURES, mFailures)
+                .putLong(KEY_RETRY_TIME, mRetryTime)
+                .apply();
+    }
+}
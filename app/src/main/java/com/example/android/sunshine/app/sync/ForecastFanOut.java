@@ -0,0 +1,102 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands a fresh {@link ForecastSnapshot} to everything that shows it, each on its own thread, so
+ * that a slow one (the notification fetches its art over the network) doesn't hold up the
+ * others.  The sync waits for all of them, up to {@link #PUBLISH_TIMEOUT_MILLIS}, as nothing
+ * keeps the device awake for them once it has returned.
+ *
+ * How long every consumer takes is recorded under its stage in
+ * {@link WeatherContract.SyncStatsEntry}.
+ */
+class ForecastFanOut {
+    private static final String LOG_TAG = ForecastFanOut.class.getSimpleName();
+
+    // Consumers still running after this are interrupted
+    static final long PUBLISH_TIMEOUT_MILLIS = 20 * 1000;
+
+    interface Consumer {
+        void onForecast(ForecastSnapshot snapshot);
+    }
+
+    private final Context mContext;
+    private final long mTimeoutMillis;
+    private final ArrayList<String> mStages = new ArrayList<String>();
+    private final ArrayList<Consumer> mConsumers = new ArrayList<Consumer>();
+
+    ForecastFanOut(Context context, long timeoutMillis) {
+        mContext = context;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    ForecastFanOut(Context context) {
+        this(context, PUBLISH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param stage the SyncStatsEntry stage the consumer's latency is recorded under
+     */
+    ForecastFanOut add(String stage, Consumer consumer) {
+        mStages.add(stage);
+        mConsumers.add(consumer);
+        return this;
+    }
+
+    /**
+     * Runs every consumer and returns once they are all done, or once the timeout has passed
+     * and the ones still running have been interrupted.
+     */
+    void publish(final ForecastSnapshot snapshot) {
+        if (mConsumers.isEmpty()) {
+            return;
+        }
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(mConsumers.size());
+        for (int i = 0; i < mConsumers.size(); i++) {
+            final String stage = mStages.get(i);
+            final Consumer consumer = mConsumers.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    long start = System.nanoTime();
+                    try {
+                        consumer.onForecast(snapshot);
+                    } catch (RuntimeException e) {
+                        // One broken consumer shouldn't take the others down with it
+                        Log.e(LOG_TAG, "Error in " + stage, e);
+                    }
+                    recordLatency(stage, System.nanoTime() - start);
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            // Cancels whatever hasn't finished when the timeout passes
+            executor.invokeAll(tasks, mTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // The sync was cancelled, let the caller see it
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void recordLatency(String stage, long nanos) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncStatsEntry.COLUMN_STAGE, stage);
+        values.put(WeatherContract.SyncStatsEntry.COLUMN_DURATION, nanos / 1000);
+        mContext.getContentResolver().insert(WeatherContract.SyncStatsEntry.CONTENT_URI, values);
+    }
+}
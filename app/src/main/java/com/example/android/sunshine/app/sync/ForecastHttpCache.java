@@ -0,0 +1,484 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A small on-disk cache for forecast responses.
+ *
+ * Every entry keeps the response body along with its ETag, Last-Modified and expiry time so the
+ * next sync can either skip the request entirely while the response is still fresh, or
+ * revalidate it with a conditional GET and skip parsing when the server answers 304.  The cache
+ * is bounded to {@link #MAX_SIZE} bytes of bodies; the least recently written entries go first.
+ * It also keeps the day the body was downloaded on, which is the day its forecast starts with.
+ *
+ * Hit and miss counts are kept in their own SharedPreferences file so they survive the process
+ * and can be read back with {@link #getHitCount()}, {@link #getNotModifiedCount()} and
+ * {@link #getMissCount()}, or from outside the sync adapter through the provider's
+ * {@link WeatherContract.SyncStatsEntry#METHOD_HTTP_CACHE_STATS}.
+ */
+public class ForecastHttpCache {
+    private static final String LOG_TAG = ForecastHttpCache.class.getSimpleName();
+
+    static final String CACHE_DIR = "forecast_http_cache";
+    static final String STATS_PREFS_NAME = WeatherContract.SyncStatsEntry.HTTP_CACHE_PREFS_NAME;
+    // A 14 day forecast is around 5KB, this leaves room for plenty of locations
+    static final long MAX_SIZE = 512 * 1024;
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Without the API key, which has no business sitting in the cache directory
+    private static final String META_URL = "url";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last_modified";
+    private static final String META_EXPIRES = "expires";
+    private static final String META_FETCH_DAY = "fetch_day";
+
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String STAT_HITS = WeatherContract.SyncStatsEntry.EXTRA_CACHE_HITS;
+    private static final String STAT_NOT_MODIFIED =
+            WeatherContract.SyncStatsEntry.EXTRA_CACHE_NOT_MODIFIED;
+    private static final String STAT_MISSES = WeatherContract.SyncStatsEntry.EXTRA_CACHE_MISSES;
+
+    private final File mDirectory;
+    private final SharedPreferences mStats;
+
+    /**
+     * A cached response for a single URL.
+     */
+    public class Entry {
+        final String mKey;
+        final String mUrl;
+        String mETag;
+        String mLastModified;
+        long mExpires;
+        int mFetchDay;
+
+        Entry(String key, String url) {
+            mKey = key;
+            mUrl = url;
+        }
+
+        /**
+         * @return true while the response's max-age (or Expires) hasn't passed yet, in which
+         * case there's no need to go to the network at all.
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < mExpires;
+        }
+
+        /**
+         * Turns the request into a conditional GET so the server can answer with a 304 if
+         * the forecast hasn't changed since this entry was stored.
+         */
+        public void addConditionalHeaders(Map<String, String> headers) {
+            if (mETag != null) {
+                headers.put("If-None-Match", mETag);
+            }
+            if (mLastModified != null) {
+                headers.put("If-Modified-Since", mLastModified);
+            }
+        }
+
+        /**
+         * @return the Julian day, in local time, the body was downloaded on.  A 304 doesn't
+         * change it, the body's first day is still the forecast for that day.
+         */
+        public int getFetchDay() {
+            return mFetchDay;
+        }
+
+        public InputStream newBodyInputStream() throws IOException {
+            return new FileInputStream(new File(mDirectory, mKey + BODY_SUFFIX));
+        }
+    }
+
+    /**
+     * Copies a response body to disk while it is being read.  The copy only becomes a cache
+     * entry once {@link #commit()} is called, which the sync does after the body parsed
+     * successfully.
+     */
+    public class Editor {
+        private final Entry mEntry;
+        private final File mTempFile;
+        private OutputStream mOut;
+        private boolean mFailed;
+
+        Editor(Entry entry) {
+            mEntry = entry;
+            mTempFile = new File(mDirectory, entry.mKey + TEMP_SUFFIX);
+        }
+
+        public InputStream newInputStream(InputStream in) throws IOException {
+            mOut = new FileOutputStream(mTempFile);
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        write(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long byteCount) throws IOException {
+                    // Skipping would leave a hole in the copy, so just don't keep this one
+                    mFailed = true;
+                    return super.skip(byteCount);
+                }
+            };
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                // Failing to cache must never fail the sync
+                Log.w(LOG_TAG, "Error writing cached response", e);
+                mFailed = true;
+            }
+        }
+
+        public void commit() {
+            if (mOut == null) {
+                return;
+            }
+            closeQuietly(mOut);
+            mOut = null;
+            File body = new File(mDirectory, mEntry.mKey + BODY_SUFFIX);
+            if (mFailed || !mTempFile.renameTo(body)) {
+                mTempFile.delete();
+                return;
+            }
+            writeMeta(mEntry);
+            trimToSize();
+        }
+
+        /**
+         * Drops the partial copy.  Does nothing if the edit has already been committed.
+         */
+        public void abort() {
+            if (mOut == null) {
+                return;
+            }
+            closeQuietly(mOut);
+            mOut = null;
+            mTempFile.delete();
+        }
+    }
+
+    public ForecastHttpCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), CACHE_DIR);
+        mStats = context.getSharedPreferences(STATS_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the stored response for {@code url}, or null if there isn't one.
+     */
+    public Entry get(String url) {
+        String key = keyFor(url);
+        File meta = new File(mDirectory, key + META_SUFFIX);
+        File body = new File(mDirectory, key + BODY_SUFFIX);
+        if (!meta.exists() || !body.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(meta);
+            properties.load(in);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading cache entry for " + key, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+
+        // Guard against the (unlikely) hash collision
+        if (!withoutApiKey(url).equals(properties.getProperty(META_URL))) {
+            return null;
+        }
+        Entry entry = new Entry(key, url);
+        entry.mETag = properties.getProperty(META_ETAG);
+        entry.mLastModified = properties.getProperty(META_LAST_MODIFIED);
+        entry.mExpires = Long.parseLong(properties.getProperty(META_EXPIRES, "0"));
+        // Without the day it was downloaded on, the body can't be turned back into dated rows
+        String fetchDay = properties.getProperty(META_FETCH_DAY);
+        if (fetchDay == null) {
+            return null;
+        }
+        entry.mFetchDay = Integer.parseInt(fetchDay);
+        return entry;
+    }
+
+    /**
+     * Starts caching a 200 response for {@code url}.
+     * @param fetchDay the Julian day, in local time, the response's forecast starts with
+     * @return null if the response can't be cached, for instance because it carries neither a
+     * validator nor a max-age and so couldn't ever save us a download.
+     */
+    public Editor edit(String url, ForecastTransport.Response response, int fetchDay) {
+        if (response.getCode() != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null && cacheControl.contains("no-store")) {
+            return null;
+        }
+        Entry entry = new Entry(keyFor(url), url);
+        entry.mFetchDay = fetchDay;
+        readResponseHeaders(entry, response);
+        if (entry.mETag == null && entry.mLastModified == null && !entry.isFresh()) {
+            return null;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return null;
+        }
+        return new Editor(entry);
+    }
+
+    /**
+     * The server answered a conditional GET for {@code entry} with a 304.  Refreshes the
+     * entry's validators and expiry from the response.
+     */
+    public void onNotModified(Entry entry, ForecastTransport.Response response) {
+        readResponseHeaders(entry, response);
+        writeMeta(entry);
+        increment(STAT_NOT_MODIFIED);
+    }
+
+    /**
+     * Changes the day an entry's body is taken to have been downloaded on, for tests.
+     */
+    void setFetchDay(Entry entry, int fetchDay) {
+        entry.mFetchDay = fetchDay;
+        writeMeta(entry);
+    }
+
+    /**
+     * Records that a still fresh entry saved a request.
+     */
+    public void recordHit() {
+        increment(STAT_HITS);
+    }
+
+    /**
+     * Records that the full forecast had to be downloaded.
+     */
+    public void recordMiss() {
+        increment(STAT_MISSES);
+    }
+
+    /**
+     * @return number of syncs that didn't go to the network because the cached forecast was
+     * still fresh.
+     */
+    public long getHitCount() {
+        return mStats.getLong(STAT_HITS, 0);
+    }
+
+    /**
+     * @return number of syncs where the server confirmed the cached forecast with a 304.
+     */
+    public long getNotModifiedCount() {
+        return mStats.getLong(STAT_NOT_MODIFIED, 0);
+    }
+
+    /**
+     * @return number of syncs that downloaded the full forecast.
+     */
+    public long getMissCount() {
+        return mStats.getLong(STAT_MISSES, 0);
+    }
+
+    /**
+     * Deletes all entries and resets the counters.
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mStats.edit().clear().commit();
+    }
+
+    private void readResponseHeaders(Entry entry, ForecastTransport.Response response) {
+        String eTag = response.getHeader("ETag");
+        if (eTag != null) {
+            entry.mETag = eTag;
+        }
+        String lastModified = response.getHeader("Last-Modified");
+        if (lastModified != null) {
+            entry.mLastModified = lastModified;
+        }
+
+        long now = System.currentTimeMillis();
+        long maxAgeSeconds = parseMaxAge(response.getHeader("Cache-Control"));
+        if (maxAgeSeconds >= 0) {
+            entry.mExpires = now + maxAgeSeconds * 1000;
+        } else {
+            long expires = response.getHeaderDate("Expires", 0);
+            long date = response.getHeaderDate("Date", now);
+            // Apply the server's idea of the lifetime to our clock
+            entry.mExpires = expires > date ? now + (expires - date) : 0;
+        }
+    }
+
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-cache")) {
+                return 0;
+            }
+            if (directive.startsWith("max-age=")) {
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring("max-age=".length())));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void writeMeta(Entry entry) {
+        Properties properties = new Properties();
+        properties.setProperty(META_URL, withoutApiKey(entry.mUrl));
+        if (entry.mETag != null) {
+            properties.setProperty(META_ETAG, entry.mETag);
+        }
+        if (entry.mLastModified != null) {
+            properties.setProperty(META_LAST_MODIFIED, entry.mLastModified);
+        }
+        properties.setProperty(META_EXPIRES, Long.toString(entry.mExpires));
+        properties.setProperty(META_FETCH_DAY, Integer.toString(entry.mFetchDay));
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(mDirectory, entry.mKey + META_SUFFIX));
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error writing cache entry for " + entry.mKey, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void trimToSize() {
+        File[] bodies = mDirectory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : bodies) {
+            size += file.length();
+        }
+        if (size <= MAX_SIZE) {
+            return;
+        }
+
+        // Oldest first
+        Arrays.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : bodies) {
+            if (size <= MAX_SIZE) {
+                break;
+            }
+            String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+            File meta = new File(mDirectory, key + META_SUFFIX);
+            size -= file.length() + meta.length();
+            file.delete();
+            meta.delete();
+        }
+    }
+
+    private void increment(String stat) {
+        synchronized (mStats) {
+            mStats.edit().putLong(stat, mStats.getLong(stat, 0) + 1).apply();
+        }
+    }
+
+    /**
+     * @return the url with its APPID query parameter taken out
+     */
+    static String withoutApiKey(String url) {
+        return url.replaceAll("([?&])" + APPID_PARAM + "=[^&]*(&|$)", "$1")
+                .replaceAll("[?&]$", "");
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Android device has SHA-1 and UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error closing cache file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Pulls the daily forecast out of an OpenWeatherMap response as it comes off the wire.
+ *
+ * Unlike building an org.json tree from the full response string, this walks the stream token
+ * by token and hands every day of the "list" array to a {@link Callback} as soon as it has been
+ * read, so memory use does not grow with the number of days or cities in the payload.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    /**
+     * The values of a single forecast day.  The parser reuses one instance for the whole list,
+     * so callbacks must copy out whatever they want to keep.
+     */
+    public static class DayForecast {
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+
+        // Neither can be negative in a real forecast, this marks them as missing
+        private static final int MISSING = -1;
+
+        void clear() {
+            pressure = Double.NaN;
+            humidity = MISSING;
+            windSpeed = Double.NaN;
+            windDirection = Double.NaN;
+            high = Double.NaN;
+            low = Double.NaN;
+            description = null;
+            weatherId = MISSING;
+        }
+
+        boolean isComplete() {
+            return description != null && humidity != MISSING && weatherId != MISSING
+                    && !Double.isNaN(pressure) && !Double.isNaN(windSpeed)
+                    && !Double.isNaN(windDirection) && !Double.isNaN(high) && !Double.isNaN(low);
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called once the "city" object has been read.  OWM sends it before the list, but the
+         * parser doesn't rely on that.
+         */
+        void onCity(String cityName, double lat, double lon);
+
+        /**
+         * Called for each element of the "list" array, in order.
+         * @param dayIndex position of the day within the list, 0 being today
+         * @param day the parsed values, only valid for the duration of the call
+         */
+        void onDay(int dayIndex, DayForecast day);
+    }
+
+    private final DayForecast mDay = new DayForecast();
+
+    /**
+     * Parses the response read from {@code in}.  The reader is not closed.
+     *
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     * response didn't carry one.  Parsing stops as soon as an error code is seen.
+     * @throws JSONException if the response isn't a well formed forecast
+     */
+    public int parse(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readForecast(reader, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // JsonReader reports structural problems with runtime exceptions, fold them into the
+            // same error the rest of the sync code already handles for bad responses.
+            JSONException jsonException = new JSONException(e.getMessage());
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+    }
+
+    private int readForecast(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        int code = HttpURLConnection.HTTP_OK;
+        boolean hasCity = false;
+        boolean hasList = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                // OWM sends this either as a number or as a string
+                code = reader.nextInt();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    return code;
+                }
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, callback);
+                hasCity = true;
+            } else if (OWM_LIST.equals(name)) {
+                readList(reader, callback);
+                hasList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasCity || !hasList) {
+            throw new JSONException("Forecast is missing " + (hasCity ? OWM_LIST : OWM_CITY));
+        }
+        return code;
+    }
+
+    private void readCity(JsonReader reader, Callback callback) throws IOException, JSONException {
+        String cityName = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+        callback.onCity(cityName, lat, lon);
+    }
+
+    private void readList(JsonReader reader, Callback callback) throws IOException, JSONException {
+        int dayIndex = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            // A cancelled sync stops between days rather than reading the rest of the response
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Parsing interrupted");
+            }
+            mDay.clear();
+            readDay(reader, mDay);
+            if (!mDay.isComplete()) {
+                throw new JSONException("Incomplete forecast for day " + dayIndex);
+            }
+            callback.onDay(dayIndex++, mDay);
+        }
+        reader.endArray();
+    }
+
+    private void readDay(JsonReader reader, DayForecast day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = reader.nextInt();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (first && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        readWeather(reader, day);
+                    } else {
+                        reader.skipValue();
+                    }
+                    first = false;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readWeather(JsonReader reader, DayForecast day) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DESCRIPTION.equals(name)) {
+                day.description = reader.nextString();
+            } else if (OWM_WEATHER_ID.equals(name)) {
+                day.weatherId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * The current forecast for a location as it was right after a sync, read once and handed to
+ * everything that shows it, so none of them has to query the provider again.
+ *
+ * It travels to the widget and Muzei services as Intent extras.
+ */
+public final class ForecastSnapshot {
+    private static final String[] SNAPSHOT_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DATE = 0;
+    private static final int INDEX_WEATHER_ID = 1;
+    private static final int INDEX_MAX_TEMP = 2;
+    private static final int INDEX_MIN_TEMP = 3;
+    private static final int INDEX_SHORT_DESC = 4;
+
+    private static final String EXTRA_LOCATION_SETTING = "snapshot_location_setting";
+    private static final String EXTRA_DATE = "snapshot_date";
+    private static final String EXTRA_WEATHER_ID = "snapshot_weather_id";
+    private static final String EXTRA_HIGH = "snapshot_high";
+    private static final String EXTRA_LOW = "snapshot_low";
+    private static final String EXTRA_DESCRIPTION = "snapshot_description";
+
+    public final String locationSetting;
+    public final long date;
+    public final int weatherId;
+    public final double highTemperature;
+    public final double lowTemperature;
+    public final String description;
+
+    public ForecastSnapshot(String locationSetting, long date, int weatherId,
+                            double highTemperature, double lowTemperature, String description) {
+        this.locationSetting = locationSetting;
+        this.date = date;
+        this.weatherId = weatherId;
+        this.highTemperature = highTemperature;
+        this.lowTemperature = lowTemperature;
+        this.description = description;
+    }
+
+    /**
+     * @return the first forecast from today on for the location, or null if there is none.
+     */
+    public static ForecastSnapshot query(Context context, String locationSetting) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return call(context, locationSetting);
+        }
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = context.getContentResolver().query(weatherUri, SNAPSHOT_PROJECTION,
+                null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        ForecastSnapshot snapshot = null;
+        if (cursor.moveToFirst()) {
+            snapshot = new ForecastSnapshot(locationSetting,
+                    cursor.getLong(INDEX_DATE),
+                    cursor.getInt(INDEX_WEATHER_ID),
+                    cursor.getDouble(INDEX_MAX_TEMP),
+                    cursor.getDouble(INDEX_MIN_TEMP),
+                    cursor.getString(INDEX_SHORT_DESC));
+        }
+        cursor.close();
+        return snapshot;
+    }
+
+    /**
+     * Asks the provider for just the current conditions, which spares the cursor query() would
+     * build and fill for them.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ForecastSnapshot call(Context context, String locationSetting) {
+        Bundle result = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_CURRENT_CONDITIONS, locationSetting, null);
+        if (result == null || !result.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+            return null;
+        }
+        return new ForecastSnapshot(locationSetting,
+                result.getLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                result.getInt(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                result.getDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                result.getDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                result.getString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC));
+    }
+
+    /**
+     * @return whether this is today's forecast, rather than the first day after today that a
+     * location without one still has.
+     */
+    public boolean isToday() {
+        return date == WeatherContract.normalizeDate(System.currentTimeMillis());
+    }
+
+    public Intent writeTo(Intent intent) {
+        return intent.putExtra(EXTRA_LOCATION_SETTING, locationSetting)
+                .putExtra(EXTRA_DATE, date)
+                .putExtra(EXTRA_WEATHER_ID, weatherId)
+                .putExtra(EXTRA_HIGH, highTemperature)
+                .putExtra(EXTRA_LOW, lowTemperature)
+                .putExtra(EXTRA_DESCRIPTION, description);
+    }
+
+    /**
+     * @return the snapshot put in the Intent by {@link #writeTo}, or null if there is none or it
+     * is for another location than {@code locationSetting}.
+     */
+    public static ForecastSnapshot fromIntent(Intent intent, String locationSetting) {
+        if (intent == null || !locationSetting.equals(intent.getStringExtra(EXTRA_LOCATION_SETTING))) {
+            return null;
+        }
+        return new ForecastSnapshot(locationSetting,
+                intent.getLongExtra(EXTRA_DATE, 0),
+                intent.getIntExtra(EXTRA_WEATHER_ID, 0),
+                intent.getDoubleExtra(EXTRA_HIGH, 0),
+                intent.getDoubleExtra(EXTRA_LOW, 0),
+                intent.getStringExtra(EXTRA_DESCRIPTION));
+    }
+
+    public SunshineSyncAdapter.WeatherInfo toWeatherInfo() {
+        SunshineSyncAdapter.WeatherInfo weatherInfo = new SunshineSyncAdapter.WeatherInfo();
+        weatherInfo.weatherId = weatherId;
+        weatherInfo.highTemperature = highTemperature;
+        weatherInfo.lowTemperature = lowTemperature;
+        weatherInfo.description = description;
+        return weatherInfo;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * How the sync adapter gets forecast responses.  {@link HttpForecastTransport} goes to the
+ * network, tests can plug in one that answers from recorded payloads instead.
+ */
+public interface ForecastTransport {
+
+    /**
+     * A response whose headers have arrived.  Closing it hands the connection back for reuse.
+     */
+    interface Response extends Closeable {
+        int getCode();
+
+        /**
+         * @return the value of the header, or null if the response doesn't have it.
+         */
+        String getHeader(String name);
+
+        /**
+         * @return the header parsed as an HTTP date in milliseconds since the epoch, or
+         * {@code defaultValue} if it is missing or malformed.
+         */
+        long getHeaderDate(String name, long defaultValue);
+
+        /**
+         * @throws IOException if the response is an error, the way
+         * {@link java.net.HttpURLConnection#getInputStream()} does.
+         */
+        InputStream getBody() throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Sends a GET and waits for the response headers.
+     */
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    /**
+     * Aborts every request in flight, from any thread.  Whoever is waiting on one of them gets
+     * an IOException.  Requests made afterwards go through as usual.
+     */
+    void cancel();
+}
@@ -0,0 +1,131 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * {@link ForecastTransport} over HttpURLConnection.
+ *
+ * Connections are never disconnected after a successful response, closing the body is what
+ * returns them to HttpURLConnection's keep-alive pool, so the next sync (or the next location of
+ * the same sync) skips the TCP handshake.  Only failed and cancelled connections are torn down.
+ */
+public class HttpForecastTransport implements ForecastTransport {
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+    private final HashSet<HttpURLConnection> mInFlight = new HashSet<HttpURLConnection>();
+
+    public HttpForecastTransport() {
+        this(CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+    }
+
+    HttpForecastTransport(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        connection.setRequestMethod("GET");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        synchronized (mInFlight) {
+            mInFlight.add(connection);
+        }
+        try {
+            connection.connect();
+            connection.getResponseCode();
+        } catch (IOException e) {
+            release(connection);
+            connection.disconnect();
+            throw e;
+        }
+        return new HttpResponse(connection);
+    }
+
+    @Override
+    public void cancel() {
+        HttpURLConnection[] connections;
+        synchronized (mInFlight) {
+            connections = mInFlight.toArray(new HttpURLConnection[mInFlight.size()]);
+            mInFlight.clear();
+        }
+        // Closes the sockets under whoever is blocked reading from them
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    private void release(HttpURLConnection connection) {
+        synchronized (mInFlight) {
+            mInFlight.remove(connection);
+        }
+    }
+
+    private class HttpResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private InputStream mBody;
+
+        HttpResponse(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public int getCode() {
+            try {
+                return mConnection.getResponseCode();
+            } catch (IOException e) {
+                // Already read by get(), this can't fail anymore
+                return -1;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getHeaderDate(String name, long defaultValue) {
+            return mConnection.getHeaderFieldDate(name, defaultValue);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mConnection.getInputStream();
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            release(mConnection);
+            try {
+                InputStream body = mBody;
+                if (body == null) {
+                    body = getCode() < HttpURLConnection.HTTP_BAD_REQUEST
+                            ? mConnection.getInputStream() : mConnection.getErrorStream();
+                }
+                if (body != null) {
+                    body.close();
+                }
+            } catch (IOException e) {
+                // Not worth keeping around
+                mConnection.disconnect();
+            }
+        }
+    }
+}
@@ -3,15 +3,18 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,6 +25,9 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
@@ -34,7 +40,9 @@ import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherRows;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
 import org.json.JSONArray;
@@ -45,12 +53,25 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
@@ -62,21 +83,22 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Rows the streaming parser makes room for up front, a longer forecast grows the batch
+    private static final int BULK_INSERT_BATCH_SIZE = 100;
+    // Days a progressive sync commits on their own before the rest of the forecast, today's
+    // and tomorrow's
+    private static final int PROGRESSIVE_DAYS = 2;
+    // Most locations fetched at the same time when several are tracked
+    private static final int MAX_PARALLEL_LOCATION_SYNCS = 3;
+    // How long a cancelled sync waits for its location threads to wind down
+    private static final long CANCEL_TIMEOUT_MILLIS = 2000;
+    // Not in HttpURLConnection, which predates it
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -87,10 +109,31 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
-    private WearNotifyIface wearNotifyHandler;
+    // Shared by every syncImmediately caller and the adapter itself, they all live in one process
+    private static final SyncRequestCoalescer sRequestCoalescer = new SyncRequestCoalescer(
+            new Handler(Looper.getMainLooper()), SyncRequestCoalescer.COALESCE_WINDOW_MILLIS,
+            new SyncRequestCoalescer.Sender() {
+                @Override
+                public void requestSync(Context context) {
+                    requestManualSync(context);
+                }
+            });
+
+    private volatile WearNotifyIface wearNotifyHandler;
+    private final ForecastHttpCache mHttpCache;
+    private final SyncScheduler mScheduler;
+    private final ForecastCircuitBreaker mCircuitBreaker;
+    private ForecastFanOut mFanOut;
+    private String mForecastBaseUrl = FORECAST_BASE_URL;
+    private ForecastTransport mTransport = new HttpForecastTransport();
+    private volatile boolean mCancelled;
+    private boolean mProgressive = true;
 
     public interface WearNotifyIface {
-        void notifyWearDevices();
+        /**
+         * Called on a background thread, with the forecast just synced.
+         */
+        void notifyWearDevices(WeatherInfo weatherInfo);
     }
 
     public static class WeatherInfo {
@@ -101,20 +144,212 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mHttpCache = new ForecastHttpCache(context);
+        mScheduler = new SyncScheduler(context);
+        mCircuitBreaker = new ForecastCircuitBreaker(context);
+        mFanOut = new ForecastFanOut(context)
+                .add(WeatherContract.SyncStatsEntry.STAGE_WIDGETS, new ForecastFanOut.Consumer() {
+                    @Override
+                    public void onForecast(ForecastSnapshot snapshot) {
+                        updateWidgets(snapshot);
+                    }
+                })
+                .add(WeatherContract.SyncStatsEntry.STAGE_MUZEI, new ForecastFanOut.Consumer() {
+                    @Override
+                    public void onForecast(ForecastSnapshot snapshot) {
+                        updateMuzei(snapshot);
+                    }
+                })
+                .add(WeatherContract.SyncStatsEntry.STAGE_NOTIFICATION, new ForecastFanOut.Consumer() {
+                    @Override
+                    public void onForecast(ForecastSnapshot snapshot) {
+                        // The notification and the watch show today's weather or nothing
+                        if (snapshot.isToday()) {
+                            notifyWeather(snapshot);
+                        }
+                    }
+                })
+                .add(WeatherContract.SyncStatsEntry.STAGE_WEAR, new ForecastFanOut.Consumer() {
+                    @Override
+                    public void onForecast(ForecastSnapshot snapshot) {
+                        WearNotifyIface handler = wearNotifyHandler;
+                        if (handler != null && snapshot.isToday()) {
+                            handler.notifyWearDevices(snapshot.toWeatherInfo());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Points the adapter at another server, for tests.
+     */
+    void setForecastBaseUrl(String forecastBaseUrl) {
+        mForecastBaseUrl = forecastBaseUrl;
+    }
+
+    /**
+     * Turns committing the first days ahead of the others on or off, to compare both in tests.
+     */
+    void setProgressive(boolean progressive) {
+        mProgressive = progressive;
+    }
+
+    /**
+     * Replaces how forecasts are fetched, for tests.
+     */
+    void setTransport(ForecastTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Replaces what the preferred location's forecast is handed to, for tests that shouldn't
+     * reach the widgets, Muzei, the notification and the watch.
+     */
+    void setFanOut(ForecastFanOut fanOut) {
+        mFanOut = fanOut;
+    }
+
+    /**
+     * Called by the framework when the sync is cancelled, for instance because a new one was
+     * requested for another location.  The sync thread gets interrupted, which the provider also
+     * sees since it runs on that thread, and the threads waiting on the network are unblocked.
+     * Whatever location was being written is rolled back, and nobody is told about the sync.
+     */
+    @Override
+    public void onSyncCanceled() {
+        mCancelled = true;
+        super.onSyncCanceled();
+        mTransport.cancel();
+    }
+
+    private boolean isCancelled() {
+        return mCancelled || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Stops the sync between steps once it has been cancelled.
+     */
+    private void throwIfCancelled() throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("Sync cancelled");
+        }
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL) && mCircuitBreaker.isOpen()) {
+            // The user may have just fixed what was failing, so their refresh goes out as the
+            // probe instead of waiting for the backoff
+            Log.d(LOG_TAG, "Server is failing, probing it for a manual sync");
+            mCircuitBreaker.allowProbeNow();
+        }
+        mCancelled = false;
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+        sRequestCoalescer.onSyncStarted(preferredLocation);
+        try {
+            syncLocations(preferredLocation, syncResult);
+        } finally {
+            sRequestCoalescer.onSyncFinished();
+        }
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    // Also called by tests, which give their own preferred location
+    void syncLocations(String preferredLocation, SyncResult syncResult) {
+        // The preferred location always comes first, followed by the other tracked ones
+        final ArrayList<LocationSyncResult> results = new ArrayList<LocationSyncResult>();
+        results.add(new LocationSyncResult(preferredLocation));
+        for (String locationSetting : getTrackedLocations(getContext())) {
+            if (!locationSetting.equals(preferredLocation)) {
+                results.add(new LocationSyncResult(locationSetting));
+            }
+        }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+        if (results.size() == 1) {
+            syncLocation(results.get(0));
+        } else {
+            // Each location is fetched, parsed and committed on its own, so a slow city
+            // doesn't hold back the others
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(results.size(), MAX_PARALLEL_LOCATION_SYNCS));
+            ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(results.size());
+            for (final LocationSyncResult result : results) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        syncLocation(result);
+                        return null;
+                    }
+                });
+            }
+            try {
+                // Interrupting this thread cancels the tasks, which interrupts their threads
+                executor.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Sync interrupted", e);
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+            if (isCancelled()) {
+                awaitTermination(executor);
+            }
+        }
+
+        for (LocationSyncResult result : results) {
+            if (result.status == LOCATION_STATUS_SERVER_DOWN) {
+                syncResult.stats.numIoExceptions++;
+            } else if (result.status == LOCATION_STATUS_SERVER_INVALID) {
+                syncResult.stats.numParseExceptions++;
+            }
+            syncResult.stats.numEntries += result.rowCount;
+            syncResult.stats.numUpdates += result.changedCount;
+        }
+        if (mCircuitBreaker.isOpen()) {
+            // Keep the framework from retrying the failed sync before the breaker would allow it
+            syncResult.delayUntil = mCircuitBreaker.getRetryTime() / 1000;
+        }
+
+        if (isCancelled()) {
+            // Whatever replaces this sync does the notifying
+            Log.d(LOG_TAG, "Sync cancelled");
+            return;
+        }
+        onLocationsSynced(results);
+    }
+
+    /**
+     * Waits for the location threads of a cancelled sync, so that the sync thread isn't handed
+     * back while they are still writing.  Gives up after {@link #CANCEL_TIMEOUT_MILLIS}.
+     */
+    private void awaitTermination(ExecutorService executor) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!executor.awaitTermination(CANCEL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Cancelled location syncs still running");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fetches the forecast for one location and commits it.  Safe to run for several
+     * locations at once.
+     */
+    void syncLocation(LocationSyncResult result) {
+        String locationQuery = result.locationSetting;
+
+        // These need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        ForecastTransport.Response response = null;
+        InputStream inputStream = null;
+        ForecastHttpCache.Editor cacheEditor = null;
+        boolean requested = false;
 
         String format = "json";
         String units = "metric";
@@ -124,15 +359,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             // Construct the URL for the OpenWeatherMap query
             // Possible parameters are avaiable at OWM's forecast API page, at
             // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
             final String QUERY_PARAM = "q";
             final String FORMAT_PARAM = "mode";
             final String UNITS_PARAM = "units";
             final String DAYS_PARAM = "cnt";
             final String APPID_PARAM = "APPID";
 
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+            Uri builtUri = Uri.parse(mForecastBaseUrl).buildUpon()
                     .appendQueryParameter(QUERY_PARAM, locationQuery)
                     .appendQueryParameter(FORMAT_PARAM, format)
                     .appendQueryParameter(UNITS_PARAM, units)
@@ -142,59 +375,276 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             URL url = new URL(builtUri.toString());
 
+            // If the last response for this URL hasn't expired yet, there's no point in asking
+            ForecastHttpCache.Entry cachedResponse = mHttpCache.get(url.toString());
+            if (cachedResponse != null && cachedResponse.isFresh()) {
+                mHttpCache.recordHit();
+                useCachedForecast(cachedResponse, result);
+                return;
+            }
+
+            if (!mCircuitBreaker.allowRequest()) {
+                Log.d(LOG_TAG, locationQuery + ": server is failing, not fetching");
+                return;
+            }
+            requested = true;
+
             // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+            HashMap<String, String> headers = new HashMap<String, String>();
+            // Asking for an encoding ourselves turns off HttpURLConnection's transparent gzip,
+            // which would hide how many bytes actually came over the wire
+            headers.put("Accept-Encoding", "gzip, deflate");
+            if (cachedResponse != null) {
+                cachedResponse.addConditionalHeaders(headers);
+            }
+            long connectStart = SyncTrace.begin();
+            response = mTransport.get(url.toString(), headers);
+            int responseCode = response.getCode();
+            result.trace.end(WeatherContract.SyncStatsEntry.STAGE_CONNECT, connectStart);
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
+            // The forecast starts with the day it was downloaded on
+            int julianStartDay = getJulianToday();
+
+            if (cachedResponse != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mHttpCache.onNotModified(cachedResponse, response);
+                useCachedForecast(cachedResponse, result);
                 return;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+            mHttpCache.recordMiss();
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+            if (isClientError(responseCode)) {
+                // An unknown city or a bad key, asking again won't help but the server is fine
+                Log.w(LOG_TAG, locationQuery + ": server answered " + responseCode);
+                result.setStatus(LOCATION_STATUS_INVALID);
+                return;
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            inputStream = response.getBody();
+            if (inputStream == null) {
+                // Nothing to do.
                 return;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+            // Count the bytes on both sides of the decompression
+            MeteredInputStream download = new MeteredInputStream(inputStream);
+            MeteredInputStream body = new MeteredInputStream(
+                    decodeContent(download, response.getHeader("Content-Encoding")));
+            inputStream = body;
+
+            // Keep a copy of the body as we read it, it becomes the cached response once it
+            // has been parsed successfully
+            cacheEditor = mHttpCache.edit(url.toString(), response, julianStartDay);
+            if (cacheEditor != null) {
+                inputStream = cacheEditor.newInputStream(inputStream);
+            }
+
+            // Downloading, parsing and storing all happen while the stream is read, so parsing
+            // gets whatever time the others didn't take
+            long parseStart = SyncTrace.begin();
+            boolean stored;
+            try {
+                stored = storeForecast(inputStream, julianStartDay, result);
+            } finally {
+                result.trace.add(WeatherContract.SyncStatsEntry.STAGE_DOWNLOAD,
+                        download.getReadNanos(), download.getByteCount());
+                result.trace.add(WeatherContract.SyncStatsEntry.STAGE_DECOMPRESS,
+                        body.getReadNanos() - download.getReadNanos(), body.getByteCount());
+                result.trace.add(WeatherContract.SyncStatsEntry.STAGE_PARSE,
+                        System.nanoTime() - parseStart - body.getReadNanos()
+                                - result.trace.getNanos(WeatherContract.SyncStatsEntry.STAGE_LOCATION)
+                                - result.trace.getNanos(WeatherContract.SyncStatsEntry.STAGE_BULK_INSERT),
+                        0);
+            }
+            if (stored && cacheEditor != null) {
+                cacheEditor.commit();
+            }
         } catch (IOException e) {
+            if (isCancelled()) {
+                // Not the server's fault, whatever the exception says
+                Log.d(LOG_TAG, locationQuery + ": sync cancelled");
+                result.cancelled = true;
+                return;
+            }
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            result.setStatus(LOCATION_STATUS_SERVER_DOWN);
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            result.setStatus(LOCATION_STATUS_SERVER_INVALID);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (requested) {
+                if (result.cancelled) {
+                    mCircuitBreaker.onCancelled();
+                } else if (result.status == LOCATION_STATUS_SERVER_DOWN
+                        || result.status == LOCATION_STATUS_SERVER_INVALID) {
+                    mCircuitBreaker.onFailure();
+                } else {
+                    mCircuitBreaker.onSuccess();
+                }
             }
-            if (reader != null) {
+            if (cacheEditor != null) {
+                cacheEditor.abort();
+            }
+            if (inputStream != null) {
                 try {
-                    reader.close();
+                    inputStream.close();
                 } catch (final IOException e) {
                     Log.e(LOG_TAG, "Error closing stream", e);
                 }
             }
+            if (response != null) {
+                response.close();
+            }
         }
         return;
     }
 
+    /**
+     * @return whether the response code blames the request rather than the server.  Too many
+     * requests is left out, that one is the server asking us to back off.
+     */
+    private static boolean isClientError(int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR
+                && responseCode != HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * Undoes the response's Content-Encoding, so that what comes out is the forecast JSON.
+     * Deflate is meant to come wrapped in zlib's header and checksum, but some servers send the
+     * raw deflate data, which is told apart by its first two bytes.
+     */
+    static InputStream decodeContent(InputStream in, String contentEncoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            PushbackInputStream pushback = new PushbackInputStream(in, 2);
+            byte[] header = new byte[2];
+            int length = 0;
+            int read;
+            while (length < header.length
+                    && (read = pushback.read(header, length, header.length - length)) != -1) {
+                length += read;
+            }
+            pushback.unread(header, 0, length);
+            if (length == header.length && isZlibHeader(header[0] & 0xff, header[1] & 0xff)) {
+                return new InflaterInputStream(pushback);
+            }
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(pushback, inflater) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    // Only the stream's own inflater is always ended when it closes
+                    inflater.end();
+                }
+            };
+        }
+        return in;
+    }
+
+    /**
+     * @return whether the two bytes are a zlib header: the deflate method, and a check value
+     * that makes them a multiple of 31
+     */
+    private static boolean isZlibHeader(int cmf, int flg) {
+        return (cmf & 0x0f) == 8 && (cmf * 256 + flg) % 31 == 0;
+    }
+
+    /**
+     * OWM returns daily forecasts based upon the local time of the city that is being asked
+     * for, and the first day is always the current day.
+     * @return the Julian day a forecast downloaded now starts with
+     */
+    private static int getJulianToday() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    }
+
+    /**
+     * @return the most recent date whose rows are history, yesterday's
+     */
+    private static long getLastDayToDelete() {
+        return new Time().setJulianDay(getJulianToday() - 1);
+    }
+
+    /**
+     * Reads a forecast response and stores it in the database.
+     * @param julianStartDay the day the response's forecast starts with, the day it was
+     *                       downloaded on
+     * @return true if the forecast was stored, false if the response didn't have one.
+     */
+    private boolean storeForecast(InputStream inputStream, int julianStartDay,
+                                  LocationSyncResult result) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Parse the forecast straight off the stream, without ever holding the
+            // whole response in memory.
+            return getWeatherDataFromStream(reader, julianStartDay, result);
+        }
+
+        // Read the input stream into a String
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
+            // But it does make debugging a *lot* easier if you print out the completed
+            // buffer for debugging.
+            buffer.append(line + "\n");
+        }
+
+        if (buffer.length() == 0) {
+            // Stream was empty.  No point in parsing.
+            result.setStatus(LOCATION_STATUS_SERVER_DOWN);
+            return false;
+        }
+        throwIfCancelled();
+        return getWeatherDataFromJson(buffer.toString(), julianStartDay, result);
+    }
+
+    /**
+     * Called when the cached response is still good.  Normally the rows parsed from it are still
+     * in the database, so there's nothing to parse, write or tell anyone about, only the days
+     * gone by to delete.  Should the rows be gone, they get rebuilt from the cached body instead
+     * of downloading it again, dated from the day the body was downloaded on.
+     */
+    private void useCachedForecast(ForecastHttpCache.Entry cachedResponse, LocationSyncResult result)
+            throws IOException, JSONException {
+        if (hasForecastForToday(result.locationSetting)) {
+            Log.d(LOG_TAG, result.locationSetting + ": forecast not modified");
+            result.onWeatherDataStored(0, 0, getLastDayToDelete());
+            return;
+        }
+
+        InputStream inputStream = cachedResponse.newBodyInputStream();
+        try {
+            storeForecast(inputStream, cachedResponse.getFetchDay(), result);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private boolean hasForecastForToday(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Take the String representing the complete forecast in JSON Format and
      * pull out the data we need to construct the Strings needed for the wireframes.
@@ -202,9 +652,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * Fortunately parsing is easy:  constructor takes the JSON string and converts it
      * into an Object hierarchy for us.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+    private boolean getWeatherDataFromJson(String forecastJsonStr, int julianStartDay,
+                                           LocationSyncResult result)
+            throws JSONException, InterruptedIOException {
 
         // Now we have a String representing the complete forecast in JSON Format.
         // Fortunately parsing is easy:  constructor takes the JSON string and converts it
@@ -251,11 +701,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     case HttpURLConnection.HTTP_OK:
                         break;
                     case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
+                        result.setStatus(LOCATION_STATUS_INVALID);
+                        return false;
                     default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+                        result.setStatus(LOCATION_STATUS_SERVER_DOWN);
+                        return false;
                 }
             }
 
@@ -268,7 +718,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
             double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+            long locationStart = SyncTrace.begin();
+            long locationId = addLocation(result.locationSetting, cityName, cityLatitude, cityLongitude);
+            result.trace.end(WeatherContract.SyncStatsEntry.STAGE_LOCATION, locationStart);
 
             // Insert the new weather information into the database
             Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
@@ -278,17 +730,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             // properly.
 
             // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            // day it was downloaded on, we're going to take advantage of that to get a nice
+            // normalized UTC date for all of our weather.  julianStartDay is that day in
+            // local time.
 
             // now we work exclusively in UTC
-            dayTime = new Time();
+            Time dayTime = new Time();
 
             for(int i = 0; i < weatherArray.length(); i++) {
                 // These are the values that will be collected.
@@ -344,54 +791,344 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 cVVector.add(weatherValues);
             }
 
-            int inserted = 0;
             // add to database
             if ( cVVector.size() > 0 ) {
                 ContentValues[] cvArray = new ContentValues[cVVector.size()];
                 cVVector.toArray(cvArray);
+                long insertStart = SyncTrace.begin();
                 getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                if (wearNotifyHandler != null) {
-                    wearNotifyHandler.notifyWearDevices();
-                }
+                result.trace.end(WeatherContract.SyncStatsEntry.STAGE_BULK_INSERT, insertStart);
+                // The provider rolled back if the sync was cancelled while it was writing
+                throwIfCancelled();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            result.onWeatherDataStored(cVVector.size(), cVVector.size(), getLastDayToDelete());
+            return true;
 
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            result.setStatus(LOCATION_STATUS_SERVER_INVALID);
+            return false;
+        }
+    }
+
+    /**
+     * Streaming counterpart of {@link #getWeatherDataFromJson}.  Days are turned into rows as
+     * they are read, so neither the response string nor a JSON object tree is ever held in
+     * memory, and the rows are written once the forecast has been read.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private boolean getWeatherDataFromStream(Reader forecastReader, int julianStartDay,
+                                             LocationSyncResult result)
+            throws IOException, JSONException {
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, see getWeatherDataFromJson for why this gives us normalized UTC dates.
+        ForecastRowWriter rowWriter = new ForecastRowWriter(result.locationSetting, julianStartDay,
+                result.trace);
+        int errorCode = new ForecastJsonParser().parse(forecastReader, rowWriter);
+        switch (errorCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                result.setStatus(LOCATION_STATUS_INVALID);
+                return false;
+            default:
+                result.setStatus(LOCATION_STATUS_SERVER_DOWN);
+                return false;
+        }
+        throwIfCancelled();
+        if (!rowWriter.flush()) {
+            // The provider rolled back, the sync was cancelled while it was writing
+            throw new InterruptedIOException("Sync cancelled");
+        }
+
+        result.onWeatherDataStored(rowWriter.getRowCount(), rowWriter.getChangedCount(),
+                getLastDayToDelete());
+        return true;
+    }
+
+    /**
+     * Turns the days handed out by {@link ForecastJsonParser} into weather rows and merges them
+     * in a single transaction once the forecast is complete, so a cancelled sync is rolled back
+     * by the provider.  Only a progressive sync's first days are committed ahead of the others.
+     * They are a complete forecast for those days, so they stay even if the rest doesn't follow.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private class ForecastRowWriter implements ForecastJsonParser.Callback {
+        private final String mLocationSetting;
+        private final int mJulianStartDay;
+        private final Time mDayTime = new Time();
+        // Rows go to the provider column by column, without a ContentValues per row
+        private final WeatherRows mBatch = new WeatherRows(BULK_INSERT_BATCH_SIZE);
+        private final SyncTrace mTrace;
+        private long mLocationId = -1;
+        private int mRowCount;
+        private int mChangedCount;
+        private final boolean mProgressive = SunshineSyncAdapter.this.mProgressive;
+
+        ForecastRowWriter(String locationSetting, int julianStartDay, SyncTrace trace) {
+            mLocationSetting = locationSetting;
+            mJulianStartDay = julianStartDay;
+            mTrace = trace;
+        }
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            long start = SyncTrace.begin();
+            mLocationId = addLocation(mLocationSetting, cityName, lat, lon);
+            mTrace.end(WeatherContract.SyncStatsEntry.STAGE_LOCATION, start);
+        }
+
+        @Override
+        public void onDay(int dayIndex, ForecastJsonParser.DayForecast day) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = mDayTime.setJulianDay(mJulianStartDay + dayIndex);
+            mBatch.add(mLocationId, dateTime, day.description, day.weatherId,
+                    day.low, day.high, day.humidity, day.pressure,
+                    day.windSpeed, day.windDirection);
+
+            // We can only write once we know which location the rows belong to
+            if (mLocationId == -1) {
+                return;
+            }
+            if (mProgressive && mRowCount == 0 && mBatch.size() == PROGRESSIVE_DAYS
+                    && !isCancelled()) {
+                // Today and tomorrow are what the list and the widget show first, commit them
+                // now rather than after the whole forecast has come in over a slow network
+                int inserted = writeBatch();
+                mTrace.mark(WeatherContract.SyncStatsEntry.STAGE_FIRST_FORECAST);
+                if (inserted > 0) {
+                    onFirstDaysInserted();
+                }
+            }
+        }
+
+        /**
+         * The loaders watching these days have already been told by the provider.  The widget
+         * only hears at the end of the sync, which is too late if it had nothing to show.
+         */
+        private void onFirstDaysInserted() {
+            if (!mLocationSetting.equals(Utility.getPreferredLocation(getContext()))) {
+                return;
+            }
+            ForecastSnapshot snapshot = ForecastSnapshot.query(getContext(), mLocationSetting);
+            if (snapshot != null) {
+                updateWidgets(snapshot);
+            }
+        }
+
+        /**
+         * Merges the days not committed yet, all in one transaction.
+         * @return false if the provider rolled them back because the sync was cancelled
+         */
+        boolean flush() throws JSONException {
+            if (mLocationId == -1) {
+                throw new JSONException("Forecast has no city");
+            }
+            return writeBatch() != -1;
+        }
+
+        int getRowCount() {
+            return mRowCount;
+        }
+
+        int getChangedCount() {
+            return mChangedCount;
+        }
+
+        /**
+         * @return how many of the rows were new, or -1 if the provider rolled the batch back
+         */
+        private int writeBatch() {
+            if (mBatch.size() == 0) {
+                return 0;
+            }
+            // Days read before the city carry no location yet
+            mBatch.setLocationId(mLocationId);
+
+            // Merge rather than bulkInsert, so days whose forecast hasn't changed are neither
+            // rewritten nor reloaded by everyone watching them
+            long start = SyncTrace.begin();
+            Bundle result = getContext().getContentResolver().call(
+                    WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.WeatherEntry.METHOD_MERGE, null, mBatch.toBundle());
+            mTrace.end(WeatherContract.SyncStatsEntry.STAGE_BULK_INSERT, start);
+            if (!result.containsKey(WeatherContract.WeatherEntry.EXTRA_UNCHANGED)) {
+                return -1;
+            }
+            mRowCount += mBatch.size();
+            int inserted = result.getInt(WeatherContract.WeatherEntry.EXTRA_INSERTED);
+            mChangedCount += inserted + result.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED);
+            mBatch.clear();
+            return inserted;
+        }
+    }
+
+    /**
+     * What syncing did for a single location.
+     */
+    static class LocationSyncResult {
+        final String locationSetting;
+        final SyncTrace trace = new SyncTrace();
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        boolean hasStatus;
+        // Set instead of a status when the sync was cancelled before the location was done
+        boolean cancelled;
+        int rowCount;
+        int changedCount;
+        long lastDayToDelete;
+
+        LocationSyncResult(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+
+        void setStatus(@LocationStatus int status) {
+            this.status = status;
+            hasStatus = true;
+        }
+
+        /**
+         * @param rowCount number of weather rows received for the location
+         * @param changedCount how many of those were new or different from what was stored
+         * @param lastDayToDelete the most recent date whose rows are now history
+         */
+        void onWeatherDataStored(int rowCount, int changedCount, long lastDayToDelete) {
+            this.rowCount = rowCount;
+            this.changedCount = changedCount;
+            this.lastDayToDelete = lastDayToDelete;
+            setStatus(LOCATION_STATUS_OK);
         }
     }
 
-    private void updateWidgets() {
+    /**
+     * Records the status of every location, deletes the days that have gone by and, if the
+     * preferred location's forecast changed, lets everything showing it know.
+     * @param results one per location, the preferred location first
+     */
+    private void onLocationsSynced(List<LocationSyncResult> results) {
+        int rowCount = 0;
+        long lastDayToDelete = 0;
+        // The statuses and the delete are written in one transaction, with one notification
+        // per table once it commits
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (LocationSyncResult result : results) {
+            if (result.hasStatus) {
+                operations.add(buildLocationStatusUpdate(result));
+            }
+            rowCount += result.rowCount;
+            lastDayToDelete = Math.max(lastDayToDelete, result.lastDayToDelete);
+            Log.d(LOG_TAG, result.locationSetting + ": " + result.rowCount + " Received, " +
+                    result.changedCount + " Changed, status " + result.status + ", " + result.trace);
+        }
+
+        SyncTrace trace = new SyncTrace();
+        long start = SyncTrace.begin();
+        // Locations answered from the HTTP cache have no rows to write, but days go by for them
+        // all the same
+        if ( lastDayToDelete > 0 ) {
+            // delete old data so we don't build up an endless history
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(lastDayToDelete)})
+                    .build());
+        }
+        if (!operations.isEmpty()) {
+            try {
+                getContext().getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                        operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Error storing the sync's statuses and deleting old weather", e);
+            }
+        }
+        if ( lastDayToDelete > 0 ) {
+            start = trace.end(WeatherContract.SyncStatsEntry.STAGE_DELETE, start);
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // Done writing, fold the write-ahead log back in while nobody waits on it
+                getContext().getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                        WeatherContract.METHOD_CHECKPOINT, null, null);
+                trace.end(WeatherContract.SyncStatsEntry.STAGE_CHECKPOINT, start);
+            }
+        }
+
+        // Widgets, Muzei, notifications and the watch only ever show the preferred location.
+        // They get its forecast read once, and the sync waits for them so that they run under
+        // its wakelock.
+        LocationSyncResult preferred = results.get(0);
+        if ( preferred.changedCount > 0 ) {
+            ForecastSnapshot snapshot = ForecastSnapshot.query(getContext(), preferred.locationSetting);
+            if (snapshot != null) {
+                mFanOut.publish(snapshot);
+            }
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + results.size() + " Locations, " + rowCount +
+                " Received, " + trace);
+        storeSyncTimings(results, trace);
+        if (preferred.hasStatus) {
+            setLocationStatus(getContext(), preferred.status);
+        }
+
+        // Sync more often while the forecasts keep changing, and less while they don't
+        if (mScheduler.onSyncFinished(results)) {
+            int interval = mScheduler.getInterval();
+            configurePeriodicSync(getContext(), interval, interval / 3);
+        }
+    }
+
+    /**
+     * Hands the stage timings of every location and of the sync as a whole to the provider.
+     * The fan-out records its own once every consumer is done.
+     */
+    private void storeSyncTimings(List<LocationSyncResult> results, SyncTrace syncTrace) {
+        ArrayList<ContentValues> samples = new ArrayList<ContentValues>();
+        for (LocationSyncResult result : results) {
+            result.trace.addSamples(samples);
+        }
+        syncTrace.addSamples(samples);
+        if (!samples.isEmpty()) {
+            getContext().getContentResolver().bulkInsert(
+                    WeatherContract.SyncStatsEntry.CONTENT_URI,
+                    samples.toArray(new ContentValues[samples.size()]));
+        }
+    }
+
+    /**
+     * @return the update storing a location's sync status in its row of the location table, if
+     * it has one yet.
+     */
+    private static ContentProviderOperation buildLocationStatusUpdate(LocationSyncResult result) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_SYNC_STATUS, result.status);
+        if (result.status == LOCATION_STATUS_OK) {
+            values.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNC, System.currentTimeMillis());
+        }
+        return ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValues(values)
+                .withSelection(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{result.locationSetting})
+                .build();
+    }
+
+    private void updateWidgets(ForecastSnapshot snapshot) {
         Context context = getContext();
         // Setting the package ensures that only components in our app will receive the broadcast
-        Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
-                .setPackage(context.getPackageName());
+        Intent dataUpdatedIntent = snapshot.writeTo(new Intent(ACTION_DATA_UPDATED)
+                .setPackage(context.getPackageName()));
         context.sendBroadcast(dataUpdatedIntent);
     }
 
-    private void updateMuzei() {
+    private void updateMuzei(ForecastSnapshot snapshot) {
         // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
         // Muzei background on lower API level devices
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
             Context context = getContext();
-            context.startService(new Intent(ACTION_DATA_UPDATED)
-                    .setClass(context, WeatherMuzeiSource.class));
+            context.startService(snapshot.writeTo(new Intent(ACTION_DATA_UPDATED)
+                    .setClass(context, WeatherMuzeiSource.class)));
         }
     }
 
-    private void notifyWeather() {
+    private void notifyWeather(ForecastSnapshot snapshot) {
         Context context = getContext();
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -406,112 +1143,93 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                WeatherInfo weatherInfo = getCurrentWeatherInfo(context);
-
-                if (weatherInfo != null) {
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherInfo.weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherInfo.weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherInfo.weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            weatherInfo.description,
-                            Utility.formatTemperature(context, weatherInfo.highTemperature),
-                            Utility.formatTemperature(context, weatherInfo.lowTemperature));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
+                WeatherInfo weatherInfo = snapshot.toWeatherInfo();
+
+                int iconId = Utility.getIconResourceForWeatherCondition(weatherInfo.weatherId);
+                Resources resources = context.getResources();
+                int artResourceId = Utility.getArtResourceForWeatherCondition(weatherInfo.weatherId);
+                String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherInfo.weatherId);
+
+                // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                // Prior to that, we use a fixed size
+                @SuppressLint("InlinedApi")
+                int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                @SuppressLint("InlinedApi")
+                int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                // Retrieve the large icon
+                Bitmap largeIcon;
+                try {
+                    largeIcon = Glide.with(context)
+                            .load(artUrl)
+                            .asBitmap()
+                            .error(artResourceId)
+                            .fitCenter()
+                            .into(largeIconWidth, largeIconHeight).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                    largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                 }
+                String title = context.getString(R.string.app_name);
+
+                // Define the text of the forecast.
+                String contentText = String.format(context.getString(R.string.format_notification),
+                        weatherInfo.description,
+                        Utility.formatTemperature(context, weatherInfo.highTemperature),
+                        Utility.formatTemperature(context, weatherInfo.lowTemperature));
+
+                // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                // notifications.  Just throw in some data.
+                NotificationCompat.Builder mBuilder =
+                        new NotificationCompat.Builder(getContext())
+                                .setColor(resources.getColor(R.color.primary_light))
+                                .setSmallIcon(iconId)
+                                .setLargeIcon(largeIcon)
+                                .setContentTitle(title)
+                                .setContentText(contentText);
+
+                // Make something interesting happen when the user clicks on the notification.
+                // In this case, opening the app is sufficient.
+                Intent resultIntent = new Intent(context, MainActivity.class);
+
+                // The stack builder object will contain an artificial back stack for the
+                // started Activity.
+                // This ensures that navigating backward from the Activity leads out of
+                // your application to the Home screen.
+                TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                stackBuilder.addNextIntent(resultIntent);
+                PendingIntent resultPendingIntent =
+                        stackBuilder.getPendingIntent(
+                                0,
+                                PendingIntent.FLAG_UPDATE_CURRENT
+                        );
+                mBuilder.setContentIntent(resultPendingIntent);
+
+                NotificationManager mNotificationManager =
+                        (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+                // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                //refreshing last sync
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                editor.commit();
             }
         }
     }
 
+    /**
+     * @return today's weather for the preferred location, or null if there is no forecast for
+     * today.  The snapshot can be a later day, which the widgets show but this doesn't.
+     */
     public static WeatherInfo getCurrentWeatherInfo(Context context) {
-        String locationQuery = Utility.getPreferredLocation(context);
-
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-        WeatherInfo weatherInfo = null;
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-            String desc = cursor.getString(INDEX_SHORT_DESC);
-
-            int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-            weatherInfo = new WeatherInfo();
-            weatherInfo.weatherId = weatherId;
-            weatherInfo.highTemperature = high;
-            weatherInfo.lowTemperature = low;
-            weatherInfo.description = desc;
-        }
-        cursor.close();
-
-        return weatherInfo;
+        ForecastSnapshot snapshot =
+                ForecastSnapshot.query(context, Utility.getPreferredLocation(context));
+        return snapshot == null || !snapshot.isToday() ? null : snapshot.toWeatherInfo();
     }
 
     /**
@@ -524,12 +1242,17 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return upsertLocation(locationSetting, cityName, lat, lon);
+        }
         long locationId;
 
         // First, check if the location with this city name exists in the db
         Cursor locationCursor = getContext().getContentResolver().query(
                 WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT},
                 WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
                 new String[]{locationSetting},
                 null);
@@ -537,6 +1260,18 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         if (locationCursor.moveToFirst()) {
             int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
             locationId = locationCursor.getLong(locationIdIndex);
+
+            // A location tracked before its first sync only has a placeholder name, and no
+            // coordinates
+            if (!cityName.equals(locationCursor.getString(1)) || locationCursor.isNull(2)) {
+                ContentValues locationValues = new ContentValues();
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+                getContext().getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                        locationValues, WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(locationId)});
+            }
         } else {
             // Now that the content provider is set up, inserting rows of data is pretty simple.
             // First create a ContentValues object to hold the data you want to insert.
@@ -564,6 +1299,67 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         return locationId;
     }
 
+    /**
+     * {@link #addLocation} without a query once the location is known: ids come from the
+     * process wide {@link LocationIdCache}, and only locations it doesn't have, or whose city
+     * name changed, go to the provider's upsert.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private long upsertLocation(String locationSetting, String cityName, double lat, double lon) {
+        long locationId = LocationIdCache.getInstance().get(locationSetting, cityName);
+        if (locationId != -1) {
+            return locationId;
+        }
+        Bundle extras = new Bundle();
+        extras.putString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        extras.putString(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        extras.putDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        Bundle result = getContext().getContentResolver().call(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.METHOD_UPSERT, null, extras);
+        return result.getLong(WeatherContract.LocationEntry.EXTRA_LOCATION_ID);
+    }
+
+    /**
+     * Adds a location to the ones synced alongside the preferred location.  Its forecast is
+     * fetched from the next sync on.
+     */
+    public static void trackLocation(Context context, String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_TRACKED, 1);
+        int updated = context.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                values, WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+        if (updated == 0) {
+            // The city and coordinates are filled in by the first sync, until then the
+            // coordinates are NULL so that nothing takes the location for a real place
+            values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, locationSetting);
+            context.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
+        }
+    }
+
+    /**
+     * @return the location settings added with {@link #trackLocation}
+     */
+    public static List<String> getTrackedLocations(Context context) {
+        ArrayList<String> locationSettings = new ArrayList<String>();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry.COLUMN_TRACKED + " = 1",
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locationSettings.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        return locationSettings;
+    }
+
     public void setWearNotifyHandler(WearNotifyIface handler) {
         this.wearNotifyHandler = handler;
     }
@@ -588,10 +1384,16 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Calls made within
+     * {@link SyncRequestCoalescer#COALESCE_WINDOW_MILLIS} of each other end up as one sync, and
+     * calls made while the preferred location is already syncing are dropped.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        sRequestCoalescer.request(context);
+    }
+
+    private static void requestManualSync(Context context) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -642,7 +1444,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        int syncInterval = new SyncScheduler(context).getInterval();
+        SunshineSyncAdapter.configurePeriodicSync(context, syncInterval, syncInterval / 3);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
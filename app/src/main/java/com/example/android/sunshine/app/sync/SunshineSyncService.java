@@ -4,7 +4,6 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
@@ -116,43 +115,38 @@ public class SunshineSyncService extends Service {
         }
 
         @Override
-        public void notifyWearDevices() {
+        public void notifyWearDevices(SunshineSyncAdapter.WeatherInfo weatherInfo) {
             Log.d(LOG_TAG, "notifyWearDevices");
-            new SendForecastAsync().execute();
+            sendForecast(weatherInfo);
         }
 
-        class SendForecastAsync extends AsyncTask<Void, Void, Void> {
-            @Override
-            protected Void doInBackground(Void... voids) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                String lastLowTempKey = context.getString(R.string.pref_last_low_temp);
-                String lastHighTempKey = context.getString(R.string.pref_last_high_temp);
-                String lastTempIconIdKey = context.getString(R.string.pref_last_temperature_icon_id);
-                String prefLowTempStr = prefs.getString(lastLowTempKey, "");
-                String prefHighTempStr = prefs.getString(lastHighTempKey, "");
-                int prefIconId = prefs.getInt(lastTempIconIdKey, -1);
-
-                SunshineSyncAdapter.WeatherInfo weatherInfo = SunshineSyncAdapter.getCurrentWeatherInfo(context);
-                String latestLowTemp = Utility.formatTemperature(context, weatherInfo.lowTemperature);
-                String latestHighTemp = Utility.formatTemperature(context, weatherInfo.highTemperature);
-                int latestIconId = Utility.getIconResourceForWeatherCondition(weatherInfo.weatherId);
-
-                // if none one of the params does not match with what we already sent then resend them
-                if (!(prefLowTempStr.equals(latestLowTemp) &&
-                        prefHighTempStr.equals(latestHighTemp) && (prefIconId == latestIconId))) {
-
-                    Log.d(LOG_TAG, "SendForecastAsync lastLow = " + prefLowTempStr + " currentHigh = " + latestHighTemp + " currIcon = " + latestIconId);
-                    Utility.sendCurrentForecastToWear(context, mGoogleApiClient, weatherInfo);
-
-                    // update preference
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putString(lastLowTempKey, latestLowTemp);
-                    editor.putString(lastHighTempKey, latestHighTemp);
-                    editor.putInt(lastTempIconIdKey, latestIconId);
-                    editor.commit();
-                }
-
-                return null;
+        // Runs on the sync fan-out thread, which already keeps it off the main thread
+        private void sendForecast(SunshineSyncAdapter.WeatherInfo weatherInfo) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            String lastLowTempKey = context.getString(R.string.pref_last_low_temp);
+            String lastHighTempKey = context.getString(R.string.pref_last_high_temp);
+            String lastTempIconIdKey = context.getString(R.string.pref_last_temperature_icon_id);
+            String prefLowTempStr = prefs.getString(lastLowTempKey, "");
+            String prefHighTempStr = prefs.getString(lastHighTempKey, "");
+            int prefIconId = prefs.getInt(lastTempIconIdKey, -1);
+
+            String latestLowTemp = Utility.formatTemperature(context, weatherInfo.lowTemperature);
+            String latestHighTemp = Utility.formatTemperature(context, weatherInfo.highTemperature);
+            int latestIconId = Utility.getIconResourceForWeatherCondition(weatherInfo.weatherId);
+
+            // if none one of the params does not match with what we already sent then resend them
+            if (!(prefLowTempStr.equals(latestLowTemp) &&
+                    prefHighTempStr.equals(latestHighTemp) && (prefIconId == latestIconId))) {
+
+                Log.d(LOG_TAG, "sendForecast lastLow = " + prefLowTempStr + " currentHigh = " + latestHighTemp + " currIcon = " + latestIconId);
+                Utility.sendCurrentForecastToWear(context, mGoogleApiClient, weatherInfo);
+
+                // update preference
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putString(lastLowTempKey, latestLowTemp);
+                editor.putString(lastHighTempKey, latestHighTemp);
+                editor.putInt(lastTempIconIdKey, latestIconId);
+                editor.commit();
             }
         }
 
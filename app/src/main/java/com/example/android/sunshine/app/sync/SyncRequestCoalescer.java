@@ -0,0 +1,116 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+/**
+ * Folds bursts of {@link SunshineSyncAdapter#syncImmediately} calls into a single sync.
+ *
+ * The first request opens a short window and the sync is only asked for once it closes, so the
+ * requests that arrive in the meantime ride along with it.  Requests for the location that is
+ * being synced right now are dropped altogether: the sync in flight is about to store the very
+ * forecast and location status they would have fetched.
+ */
+class SyncRequestCoalescer {
+    private static final String LOG_TAG = SyncRequestCoalescer.class.getSimpleName();
+
+    static final long COALESCE_WINDOW_MILLIS = 1000;
+
+    interface Sender {
+        void requestSync(Context context);
+    }
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final Sender mSender;
+
+    private final Object mLock = new Object();
+    private boolean mPending;
+    private String mInFlightLocation;
+    private int mSentCount;
+    private int mCoalescedCount;
+    private int mSkippedCount;
+
+    SyncRequestCoalescer(Handler handler, long windowMillis, Sender sender) {
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+        mSender = sender;
+    }
+
+    /**
+     * Asks for a sync of the preferred location, unless one is already on its way.
+     */
+    void request(Context context) {
+        final Context appContext = context.getApplicationContext();
+        String locationSetting = Utility.getPreferredLocation(appContext);
+        synchronized (mLock) {
+            if (locationSetting.equals(mInFlightLocation)) {
+                mSkippedCount++;
+                Log.d(LOG_TAG, "Already syncing " + locationSetting);
+                return;
+            }
+            if (mPending) {
+                mCoalescedCount++;
+                return;
+            }
+            mPending = true;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                send(appContext);
+            }
+        }, mWindowMillis);
+    }
+
+    private void send(Context context) {
+        String locationSetting = Utility.getPreferredLocation(context);
+        synchronized (mLock) {
+            mPending = false;
+            // The sync might have started while the window was open
+            if (locationSetting.equals(mInFlightLocation)) {
+                mSkippedCount++;
+                return;
+            }
+            mSentCount++;
+        }
+        mSender.requestSync(context);
+    }
+
+    /**
+     * Called by the sync adapter when it starts syncing the preferred location.
+     */
+    void onSyncStarted(String locationSetting) {
+        synchronized (mLock) {
+            mInFlightLocation = locationSetting;
+        }
+    }
+
+    void onSyncFinished() {
+        synchronized (mLock) {
+            mInFlightLocation = null;
+        }
+    }
+
+    int getSentCount() {
+        synchronized (mLock) {
+            return mSentCount;
+        }
+    }
+
+    int getCoalescedCount() {
+        synchronized (mLock) {
+            return mCoalescedCount;
+        }
+    }
+
+    int getSkippedCount() {
+        synchronized (mLock) {
+            return mSkippedCount;
+        }
+    }
+}
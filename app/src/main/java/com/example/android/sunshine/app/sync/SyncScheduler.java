@@ -0,0 +1,179 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+import java.util.List;
+
+/**
+ * Chooses the periodic sync interval from how often the synced forecasts actually change.
+ *
+ * Every sync records, per location, the fraction of days whose forecast came back different from
+ * what was stored, smoothed into a moving average.  When the most volatile location changes a lot
+ * the interval is halved, when every location is stable it is stretched by half, always within the
+ * bounds in R.integer.sync_interval_min_minutes and R.integer.sync_interval_max_minutes.
+ * Consecutive syncs where the server was down double the interval on top of that, until one
+ * succeeds.
+ *
+ * The chosen interval, the reason for it and the volatility of every location are kept in their
+ * own SharedPreferences file so they can be inspected.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    static final String PREFS_NAME = "sync_schedule";
+
+    // Weight of the latest sync in the moving average of a location's volatility
+    static final float VOLATILITY_WEIGHT = 0.3f;
+    // Above this fraction of days changing per sync the interval shrinks, below LOW it grows
+    static final float HIGH_VOLATILITY = 0.5f;
+    static final float LOW_VOLATILITY = 0.1f;
+
+    public static final String REASON_DEFAULT = "default";
+    public static final String REASON_VOLATILE = "volatile";
+    public static final String REASON_STABLE = "stable";
+    public static final String REASON_STEADY = "steady";
+    public static final String REASON_SERVER_DOWN = "server_down";
+
+    private static final String KEY_BASE_INTERVAL = "base_interval";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_REASON = "reason";
+    private static final String KEY_CONSECUTIVE_FAILURES = "consecutive_failures";
+    private static final String KEY_UPDATED = "updated";
+    private static final String KEY_VOLATILITY_PREFIX = "volatility_";
+
+    private final SharedPreferences mPrefs;
+    private final int mMinInterval;
+    private final int mMaxInterval;
+
+    public SyncScheduler(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Resources res = context.getResources();
+        mMinInterval = res.getInteger(R.integer.sync_interval_min_minutes) * 60;
+        mMaxInterval = res.getInteger(R.integer.sync_interval_max_minutes) * 60;
+    }
+
+    /**
+     * @return the periodic sync interval in seconds, {@link SunshineSyncAdapter#SYNC_INTERVAL}
+     * until the first sync has been recorded.
+     */
+    public int getInterval() {
+        return mPrefs.getInt(KEY_INTERVAL, clamp(SunshineSyncAdapter.SYNC_INTERVAL));
+    }
+
+    /**
+     * @return one of the REASON constants, describing why the current interval was chosen.
+     */
+    public String getReason() {
+        return mPrefs.getString(KEY_REASON, REASON_DEFAULT);
+    }
+
+    public int getConsecutiveFailures() {
+        return mPrefs.getInt(KEY_CONSECUTIVE_FAILURES, 0);
+    }
+
+    /**
+     * @return the moving average of the fraction of days that changed per sync, or -1 if the
+     * location hasn't been synced successfully yet.
+     */
+    public float getVolatility(String locationSetting) {
+        return mPrefs.getFloat(KEY_VOLATILITY_PREFIX + locationSetting, -1);
+    }
+
+    /**
+     * Records the outcome of a sync and picks the next interval.
+     * @param results one per location synced
+     * @return true if the interval changed and the periodic sync needs to be reconfigured.
+     */
+    synchronized boolean onSyncFinished(List<SunshineSyncAdapter.LocationSyncResult> results) {
+        boolean synced = false;
+        for (SunshineSyncAdapter.LocationSyncResult result : results) {
+            synced |= result.hasStatus;
+        }
+        if (!synced) {
+            // Nothing was fetched, e.g. while the circuit breaker was open
+            return false;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+
+        // The server only counts as down if no location got through
+        boolean serverDown = false;
+        float volatility = -1;
+        boolean sampled = false;
+        for (SunshineSyncAdapter.LocationSyncResult result : results) {
+            if (!result.hasStatus) {
+                continue;
+            }
+            if (result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN) {
+                serverDown = true;
+            } else if (result.status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                serverDown = false;
+                break;
+            }
+        }
+        for (SunshineSyncAdapter.LocationSyncResult result : results) {
+            float locationVolatility = getVolatility(result.locationSetting);
+            if (result.status == SunshineSyncAdapter.LOCATION_STATUS_OK && result.rowCount > 0) {
+                float changed = (float) result.changedCount / result.rowCount;
+                locationVolatility = locationVolatility < 0 ? changed :
+                        locationVolatility + VOLATILITY_WEIGHT * (changed - locationVolatility);
+                editor.putFloat(KEY_VOLATILITY_PREFIX + result.locationSetting, locationVolatility);
+                sampled = true;
+            }
+            volatility = Math.max(volatility, locationVolatility);
+        }
+
+        int baseInterval = mPrefs.getInt(KEY_BASE_INTERVAL, clamp(SunshineSyncAdapter.SYNC_INTERVAL));
+        int failures = 0;
+        String reason;
+        if (serverDown) {
+            failures = getConsecutiveFailures() + 1;
+            reason = REASON_SERVER_DOWN;
+        } else if (!sampled) {
+            // Nothing new to judge the weather by, e.g. every forecast came from the http cache.
+            // The stored volatility already moved the interval when it was measured.
+            reason = getReason();
+        } else if (volatility >= HIGH_VOLATILITY) {
+            baseInterval = clamp(baseInterval / 2);
+            reason = REASON_VOLATILE;
+        } else if (volatility <= LOW_VOLATILITY) {
+            baseInterval = clamp(baseInterval + baseInterval / 2);
+            reason = REASON_STABLE;
+        } else {
+            reason = REASON_STEADY;
+        }
+
+        // Shifting by more than the bounds allow for would only overflow
+        long interval = (long) baseInterval << Math.min(failures, 16);
+        int newInterval = clamp((int) Math.min(interval, Integer.MAX_VALUE));
+        boolean changed = newInterval != getInterval();
+
+        editor.putInt(KEY_BASE_INTERVAL, baseInterval);
+        editor.putInt(KEY_INTERVAL, newInterval);
+        editor.putString(KEY_REASON, reason);
+        editor.putInt(KEY_CONSECUTIVE_FAILURES, failures);
+        editor.putLong(KEY_UPDATED, System.currentTimeMillis());
+        editor.apply();
+
+        if (changed) {
+            Log.d(LOG_TAG, "Sync interval now " + newInterval + "s (" + reason +
+                    ", volatility " + volatility + ", " + failures + " failures)");
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        mPrefs.edit().clear().apply();
+    }
+
+    private int clamp(int interval) {
+        return Math.max(mMinInterval, Math.min(mMaxInterval, interval));
+    }
+}
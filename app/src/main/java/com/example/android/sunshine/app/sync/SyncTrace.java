@@ -0,0 +1,92 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncStatsEntry;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds up the time and bytes spent in each stage of a sync, for the timings kept behind
+ * {@link SyncStatsEntry#CONTENT_URI}.  A stage entered several times, like the bulk insert of
+ * every batch, ends up as a single sample.
+ *
+ * Not thread safe, every location being synced has its own.
+ */
+class SyncTrace {
+    // Nanoseconds and bytes per stage, in the order the stages ran
+    private final Map<String, long[]> mStages = new LinkedHashMap<String, long[]>();
+    private final long mStartNanos = System.nanoTime();
+
+    static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since {@code startNanos} to the stage.
+     * @return the current time, so the next stage can start from it
+     */
+    long end(String stage, long startNanos) {
+        long now = System.nanoTime();
+        add(stage, now - startNanos, 0);
+        return now;
+    }
+
+    /**
+     * Adds the time since the trace was created to the stage, for milestones rather than stages.
+     */
+    void mark(String stage) {
+        add(stage, System.nanoTime() - mStartNanos, 0);
+    }
+
+    void add(String stage, long nanos, long bytes) {
+        long[] totals = mStages.get(stage);
+        if (totals == null) {
+            totals = new long[2];
+            mStages.put(stage, totals);
+        }
+        totals[0] += nanos;
+        totals[1] += bytes;
+    }
+
+    long getNanos(String stage) {
+        long[] totals = mStages.get(stage);
+        return totals == null ? 0 : totals[0];
+    }
+
+    long getBytes(String stage) {
+        long[] totals = mStages.get(stage);
+        return totals == null ? 0 : totals[1];
+    }
+
+    /**
+     * Appends one {@link SyncStatsEntry} sample per stage to {@code samples}.
+     */
+    void addSamples(List<ContentValues> samples) {
+        for (Map.Entry<String, long[]> entry : mStages.entrySet()) {
+            ContentValues values = new ContentValues();
+            values.put(SyncStatsEntry.COLUMN_STAGE, entry.getKey());
+            values.put(SyncStatsEntry.COLUMN_DURATION, entry.getValue()[0] / 1000);
+            values.put(SyncStatsEntry.COLUMN_BYTES, entry.getValue()[1]);
+            samples.add(values);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : mStages.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(entry.getKey()).append(' ')
+                    .append(entry.getValue()[0] / 1000000).append("ms");
+            if (entry.getValue()[1] > 0) {
+                builder.append(' ').append(entry.getValue()[1]).append('B');
+            }
+        }
+        return builder.toString();
+    }
+}